@@ -0,0 +1,99 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares Cleaner.decompress with the previous line based implementation on typical sdk batches, both after the
+ * base64 decode of the sdk payload, as the cleaner udf does.
+ * ./gradlew jmh -PjmhIncludes=CleanerDecompressBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CleanerDecompressBenchmark {
+
+    @Param({"20", "50", "200"})
+    private int payloadKb;
+
+    private String base64Data;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder payload = new StringBuilder("[");
+        int i = 0;
+        while (payload.length() < payloadKb * 1024) {
+            if (i > 0) {
+                payload.append(',');
+            }
+            payload.append("{\"hashCode\":\"80452b0\",\"app_id\":\"uba-app\",\"unique_id\":\"83e45133-ddaf-4ac6-9844-fe4578077151")
+                    .append(i)
+                    .append("\",\"event_type\":\"_screen_view\",\"event_id\":\"1fcd7f5b-9529-4977-a303-e8c7e39db7b8-")
+                    .append(i)
+                    .append("\",\"timestamp\":1682319109405,\"platform\":\"ANDROID\",\"attributes\":{\"_session_id\":\"see000201912dk\","
+                            + "\"_screen_name\":\"MainActivity\",\"_traffic_source_medium\":\"TSM\"},\"user\":{\"_user_id\":"
+                            + "{\"value\":\"312121\",\"set_timestamp\":1667877566697}}}");
+            i++;
+        }
+        payload.append(']');
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+            gos.write(payload.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        // same as the sdk payload: base64 + gzip
+        base64Data = Base64.getEncoder().encodeToString(bos.toByteArray());
+    }
+
+    @Benchmark
+    public String decompress() {
+        return Cleaner.decompress(Base64.getDecoder().decode(base64Data));
+    }
+
+    @Benchmark
+    public String decompressByLine() throws IOException {
+        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(base64Data)));
+        BufferedReader bf = new BufferedReader(new InputStreamReader(gis, StandardCharsets.UTF_8));
+        StringBuilder outStr = new StringBuilder();
+        String line;
+        while ((line = bf.readLine()) != null) {
+            outStr.append(line);
+        }
+        return outStr.toString();
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.apache.spark.sql.catalyst.expressions.GenericRow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the streaming KvConverter.getGenericRows with the previous JsonNode tree based implementation
+ * on typical event attributes.
+ * ./gradlew jmh -PjmhIncludes=KvConverterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KvConverterBenchmark {
+
+    @Param({"5", "20", "60"})
+    private int attributeCount;
+
+    private String attributes;
+    private List<String> excludeAttributes;
+    private Set<String> excludeAttributeSet;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < attributeCount; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            switch (i % 4) {
+                case 0:
+                    sb.append("\"_session_id_").append(i).append("\":\"see000201912dk\"");
+                    break;
+                case 1:
+                    sb.append("\"_session_start_timestamp_").append(i).append("\":1667877566697");
+                    break;
+                case 2:
+                    sb.append("\"_screen_name_").append(i).append("\":\"MainActivity\"");
+                    break;
+                default:
+                    sb.append("\"_ratio_").append(i).append("\":\"0.25\"");
+                    break;
+            }
+        }
+        attributes = sb.append('}').toString();
+        excludeAttributes = Arrays.asList("_traffic_source_medium", "_traffic_source_name", "_traffic_source_source", "_channel");
+        excludeAttributeSet = new HashSet<>(excludeAttributes);
+    }
+
+    @Benchmark
+    public GenericRow[] convert() throws IOException {
+        return KvConverter.getGenericRows(attributes, excludeAttributeSet);
+    }
+
+    @Benchmark
+    public GenericRow[] convertByTree() throws IOException {
+        return LegacyKvConverter.getGenericRows(attributes, excludeAttributes);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.from_json;
+import static software.aws.solution.clickstream.Transformer.ATTRIBUTES;
+import static software.aws.solution.clickstream.Transformer.DATA;
+
+/**
+ * Parses the attributes json of the event once into a struct of the attributes the transformers read,
+ * instead of one get_json_object per attribute. A value which is not a string is kept as its json text,
+ * the same as get_json_object.
+ */
+public class AttributesConverter {
+    public static final String PARSED_ATTRIBUTES = "parsed_attributes";
+
+    static final List<String> PARSED_ATTRIBUTE_NAMES = Arrays.asList(
+            "_channel",
+            "_traffic_source_medium",
+            "_traffic_source_name",
+            "_traffic_source_source",
+            "_privacy_info_ads_storage",
+            "_privacy_info_analytics_storage",
+            "_privacy_info_uses_transient_token",
+            "_page_referer",
+            "_referer"
+    );
+
+    private static final StructType PARSED_ATTRIBUTES_TYPE = DataTypes.createStructType(PARSED_ATTRIBUTE_NAMES.stream()
+            .map(name -> DataTypes.createStructField(name, DataTypes.StringType, true))
+            .toArray(StructField[]::new));
+
+    public Dataset<Row> transform(final Dataset<Row> dataset) {
+        return dataset.withColumn(PARSED_ATTRIBUTES, from_json(col(DATA).getField(ATTRIBUTES), PARSED_ATTRIBUTES_TYPE));
+    }
+
+    /**
+     * @param name one of the PARSED_ATTRIBUTE_NAMES
+     * @return the attribute column of the dataset returned by transform
+     */
+    public static Column getAttribute(final String name) {
+        if (!PARSED_ATTRIBUTE_NAMES.contains(name)) {
+            throw new IllegalArgumentException("Attribute is not parsed: " + name);
+        }
+        return col(PARSED_ATTRIBUTES).getField(name);
+    }
+}
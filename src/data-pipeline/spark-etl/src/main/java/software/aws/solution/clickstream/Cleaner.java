@@ -29,23 +29,25 @@ import org.apache.spark.sql.api.java.UDF1;
 import org.apache.spark.sql.expressions.UserDefinedFunction;
 import org.apache.spark.sql.types.ArrayType;
 import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
 import software.aws.solution.clickstream.exception.ExtractDataException;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
 import static java.util.Objects.requireNonNull;
+import static org.apache.spark.sql.functions.coalesce;
 import static org.apache.spark.sql.functions.col;
 import static org.apache.spark.sql.functions.udf;
 import static org.apache.spark.sql.functions.from_json;
 import static org.apache.spark.sql.functions.explode;
+import static org.apache.spark.sql.functions.transform;
 import static org.apache.spark.sql.functions.input_file_name;
 import static org.apache.spark.sql.functions.lit;
 import static org.apache.spark.sql.functions.not;
@@ -58,10 +60,17 @@ import static software.aws.solution.clickstream.ContextUtil.WAREHOUSE_DIR_PROP;
 import static software.aws.solution.clickstream.ContextUtil.JOB_NAME_PROP;
 import static software.aws.solution.clickstream.ETLRunner.DEBUG_LOCAL_PATH;
 import static software.aws.solution.clickstream.Transformer.CORRUPT_RECORD;
+import static software.aws.solution.clickstream.Transformer.DATA;
 import static software.aws.solution.clickstream.Transformer.JOB_NAME_COL;
 
 @Slf4j
 public class Cleaner {
+    private static final int GZIP_MIN_LENGTH = 18;
+    private static final int GZIP_INPUT_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_INITIAL_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_REUSED_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final ThreadLocal<byte[]> DECOMPRESS_BUFFER = ThreadLocal.withInitial(() -> new byte[256 * 1024]);
+
     private static Dataset<Row> decodeDataColumn(final Dataset<Row> dataset) {
         UserDefinedFunction udfExtractData = udf(extractData(), StringType);
         return dataset.withColumn("data", udfExtractData.apply(col("data")));
@@ -88,83 +97,105 @@ public class Cleaner {
     }
 
 
-    private static String decompress(final byte[] str) {
+    static String decompress(final byte[] str) {
         if (str == null) {
             return "";
         }
-        GZIPInputStream gis;
-        try {
-            gis = new GZIPInputStream(new ByteArrayInputStream(str));
-            BufferedReader bf = new BufferedReader(new InputStreamReader(gis, StandardCharsets.UTF_8));
-            StringBuilder outStr = new StringBuilder();
-            String line;
-            while ((line = bf.readLine()) != null) {
-                outStr.append(line);
+        // one extra byte so that the end of stream is reached without growing the buffer
+        byte[] buffer = ensureCapacity(DECOMPRESS_BUFFER.get(), getUncompressedSize(str) + 1);
+        int length = 0;
+        try (GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(str), GZIP_INPUT_BUFFER_SIZE)) {
+            int readLength;
+            while ((readLength = gis.read(buffer, length, buffer.length - length)) != -1) {
+                length += readLength;
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
             }
-            return outStr.toString();
         } catch (IOException e) {
             log.error("decompress error:" + e.getMessage());
             throw new ExtractDataException(e);
         }
+        if (buffer.length <= MAX_REUSED_BUFFER_SIZE) {
+            DECOMPRESS_BUFFER.set(buffer);
+        }
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
     }
 
-    private static Dataset<Row> flatDataColumn(final Dataset<Row> dataset) {
-        ArrayType arrayType = new ArrayType(StringType, true);
-        Dataset<Row> dataset1 = dataset.withColumn("data", from_json(col("data"), arrayType).alias("data"));
-        Dataset<Row> explodedDataDateset = dataset1.withColumn("exploded_data", explode(col("data")))
-                .drop("data").withColumnRenamed("exploded_data", "data");
+    /**
+     * Reads ISIZE from the gzip trailer, it is the uncompressed size modulo 2^32 of the last member.
+     */
+    private static int getUncompressedSize(final byte[] gzipData) {
+        int n = gzipData.length;
+        if (n < GZIP_MIN_LENGTH) {
+            return 0;
+        }
+        int size = (gzipData[n - 4] & 0xff)
+                | (gzipData[n - 3] & 0xff) << 8
+                | (gzipData[n - 2] & 0xff) << 16
+                | (gzipData[n - 1] & 0xff) << 24;
+        if (size < 0 || size > MAX_INITIAL_BUFFER_SIZE) {
+            return MAX_INITIAL_BUFFER_SIZE;
+        }
+        return size;
+    }
 
-        if (ContextUtil.isDebugLocal()) {
-            dataset.write().mode(SaveMode.Overwrite).json(DEBUG_LOCAL_PATH + "/clean-1-0-flatDataColumn-input/");
-            dataset1.write().mode(SaveMode.Overwrite).json(DEBUG_LOCAL_PATH + "/clean-1-1-jsonArray/");
-            explodedDataDateset.write().mode(SaveMode.Overwrite).json(DEBUG_LOCAL_PATH + "/clean-1-2-explodedDataDateset/");
+    private static byte[] ensureCapacity(final byte[] buffer, final int capacity) {
+        if (buffer.length >= capacity) {
+            return buffer;
         }
-        return explodedDataDateset;
+        return new byte[capacity];
+    }
+
+    /**
+     * Parses and explodes the decoded json array in one generator stage, every event is parsed once
+     * with the data schema. A batch that cannot be parsed as a whole (e.g. it has a malformed event) falls back to
+     * parsing its events one by one, so that only the malformed events are reported as corrupt records.
+     */
+    private static Dataset<Row> explodeDataColumn(final Dataset<Row> dataset, final DataType dataType) {
+        Map<String, String> options = Maps.newHashMap();
+        options.put("mode", "PERMISSIVE");
+        options.put("columnNameOfCorruptRecord", CORRUPT_RECORD);
 
+        Column eventsCol = coalesce(
+                from_json(col(DATA), DataTypes.createArrayType(dataType), options),
+                transform(from_json(col(DATA), new ArrayType(StringType, true)),
+                        event -> from_json(event, dataType, options))
+        );
+        Dataset<Row> explodedDataset = dataset.withColumn("exploded_data", explode(eventsCol))
+                .drop(DATA).withColumnRenamed("exploded_data", DATA);
+
+        if (ContextUtil.isDebugLocal()) {
+            explodedDataset.write().mode(SaveMode.Overwrite).json(DEBUG_LOCAL_PATH + "/clean-1-explodedDataset/");
+        }
+        return explodedDataset;
     }
 
     public Dataset<Row> clean(final Dataset<Row> dataset, final String schemaFile) {
-        log.info(new ETLMetric(dataset, "clean enter").toString());
-        Dataset<Row> decodedDataset = decodeDataColumn(dataset);
-        ContextUtil.cacheDataset(decodedDataset);
-
-        log.info(new ETLMetric(decodedDataset, "after decodeDataColumn").toString());
-        Dataset<Row> flattedDataset = flatDataColumn(decodedDataset);
-        log.info(new ETLMetric(flattedDataset, "flatted source").toString());
-        Dataset<Row> structuredDataset = processDataColumnSchema(flattedDataset, schemaFile);
-        log.info(new ETLMetric(structuredDataset, "after processDataColumnSchema").toString());
-        Dataset<Row> filteredDataSet = filter(structuredDataset);
-        log.info(new ETLMetric(filteredDataSet, "after filter").toString());
+        Dataset<Row> inputDataset = ETLMetric.debugCount(dataset, "clean enter");
+        Dataset<Row> cachedDataset = decodeDataColumn(inputDataset);
+        ContextUtil.cacheDataset(cachedDataset);
+        // the count is observed on the cached dataset, the observations under a cache are not reported
+        Dataset<Row> decodedDataset = ETLMetric.debugCount(cachedDataset, "after decodeDataColumn");
+
+        Dataset<Row> explodedDataset = explodeDataColumn(decodedDataset, loadDataSchema(schemaFile));
+        Dataset<Row> structuredDataset = ETLMetric.debugCount(processCorruptRecords(explodedDataset), "after processCorruptRecords");
+        Dataset<Row> filteredDataSet = ETLMetric.debugCount(filter(structuredDataset), "after filter");
         if (ContextUtil.isDebugLocal()) {
             decodedDataset.write().mode(SaveMode.Overwrite).json(DEBUG_LOCAL_PATH + "/clean-0-decodedDataset/");
-            flattedDataset.write().mode(SaveMode.Overwrite).json(DEBUG_LOCAL_PATH + "/clean-1-flattedDataset/");
             structuredDataset.write().mode(SaveMode.Overwrite).json(DEBUG_LOCAL_PATH + "/clean-2-structuredDataset/");
         }
         return filteredDataSet;
     }
 
-    private Dataset<Row> processDataColumnSchema(final Dataset<Row> dataset, final String schemaFile) {
+    private DataType loadDataSchema(final String schemaFile) {
         String schemaString;
         try {
             schemaString = Resources.toString(requireNonNull(getClass().getResource(schemaFile)), StandardCharsets.UTF_8);
         } catch (IOException e) {
             throw new ExtractDataException(e);
         }
-        DataType dataType = DataType.fromJson(schemaString);
-
-        Map<String, String> options = Maps.newHashMap();
-        options.put("mode", "PERMISSIVE");
-        options.put("columnNameOfCorruptRecord", CORRUPT_RECORD);
-        Dataset<Row> rowDataset = dataset.withColumn("data", from_json(col("data"), dataType, options).alias("data"));
-        log.info(new ETLMetric(rowDataset, "after load data schema").toString());
-        if (ContextUtil.isDebugLocal()) {
-            rowDataset.write().mode(SaveMode.Overwrite)
-                    .json(DEBUG_LOCAL_PATH + "/clean-schemaDataset/");
-        }
-        Dataset<Row> normalDataset = processCorruptRecords(rowDataset);
-        log.info(new ETLMetric(normalDataset, "after processCorruptRecords").toString());
-
-        return normalDataset;
+        return DataType.fromJson(schemaString);
     }
 
     private Dataset<Row> processCorruptRecords(final Dataset<Row> dataset) {
@@ -210,12 +241,8 @@ public class Cleaner {
     }
 
     private Dataset<Row> filter(final Dataset<Row> dataset) {
-        Dataset<Row> freshDataset = filterByDataFreshness(dataset);
-        log.info(new ETLMetric(freshDataset, "after filterByDataFreshness").toString());
-
-        Dataset<Row> filteredDataset = filterByAppIds(freshDataset);
-        log.info(new ETLMetric(filteredDataset, "after filterByAppIds").toString());
-        return filteredDataset;
+        Dataset<Row> freshDataset = ETLMetric.debugCount(filterByDataFreshness(dataset), "after filterByDataFreshness");
+        return ETLMetric.debugCount(filterByAppIds(freshDataset), "after filterByAppIds");
     }
 
     private Dataset<Row> filterByDataFreshness(final Dataset<Row> dataset) {
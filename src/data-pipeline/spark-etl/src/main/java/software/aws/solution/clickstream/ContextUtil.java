@@ -18,7 +18,10 @@ import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.storage.StorageLevel;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
 
 @Slf4j
 public final class ContextUtil {
@@ -26,6 +29,7 @@ public final class ContextUtil {
     public static final String WAREHOUSE_DIR_PROP = "warehouse.dir";
     public static final String SAVE_INFO_TO_WAREHOUSE_PROP = "save.info.to.warehouse";
     public static final String DEBUG_LOCAL_PROP = "debug.local";
+    public static final String DEBUG_METRICS_PROP = "debug.metrics";
     public static final String OUTPUT_COALESCE_PARTITIONS_PROP = "output.coalesce.partitions";
     public static final String DATA_FRESHNESS_HOUR_PROP = "data.freshness.hour";
     public static final String OUTPUT_PATH_PROP = "output.path";
@@ -39,8 +43,31 @@ public final class ContextUtil {
 
     public static final String ITEM_KEEP_DAYS_PROP =  "keep.item.days";
 
+    public static final String IP_ENRICH_MODE_PROP = "ip.enrich.mode";
+    public static final String UA_CACHE_SIZE_PROP = "ua.cache.size";
+    public static final String IP_CACHE_SIZE_PROP = "ip.cache.size";
+    public static final String UA_ENRICH_MODE_PROP = "ua.enrich.mode";
+    public static final String KV_CONVERT_MODE_PROP = "kv.convert.mode";
+    public static final String KV_TYPE_DICT_ENABLED_PROP = "kv.type.dict.enabled";
+    public static final String KV_TYPE_DICT_SAMPLE_FRACTION_PROP = "kv.type.dict.sample.fraction";
+    public static final String KV_TYPE_DICT_MAX_KEYS_PER_APP_PROP = "kv.type.dict.max.keys.per.app";
+    public static final String SOURCE_LIST_MODE_PROP = "source.list.mode";
+    public static final String SOURCE_MANIFEST_KEEP_DAYS_PROP = "source.manifest.keep.days";
+    public static final String SOURCE_PARALLEL_LISTING_THRESHOLD_PROP = "source.parallel.listing.threshold";
+    public static final String SINK_WRITE_PARALLELISM_PROP = "sink.write.parallelism";
+    public static final String OUTPUT_TARGET_FILE_SIZE_MB_PROP = "output.target.file.size.mb";
+    public static final String OUTPUT_ROW_FILE_SIZE_RATIO_PROP = "output.row.file.size.ratio";
+    public static final String OUTPUT_SORT_COLUMNS_PROP = "output.sort.columns";
+    public static final String STATE_PRUNE_MODE_PROP = "state.prune.mode";
+    public static final String STATE_KEY_INDEX_ENABLED_PROP = "state.key.index.enabled";
+    public static final String STATE_COMPACT_ENABLED_PROP = "state.compact.enabled";
+    public static final String STATE_COMPACT_FILE_COUNT_PROP = "state.compact.file.count";
+    public static final String STATE_COMPACT_TARGET_FILE_SIZE_MB_PROP = "state.compact.target.file.size.mb";
+
 
     private static Dataset<Row> datasetCached;
+    private static final List<Dataset<Row>> PERSISTED_DATASETS = new ArrayList<>();
+    private static ParquetWriteConfig parquetWriteConfig;
 
     private ContextUtil() {
     }
@@ -60,6 +87,29 @@ public final class ContextUtil {
         }
     }
 
+    /**
+     * Persists a dataset which is read more than once by the jobs of the run, it is kept until unpersistDatasets.
+     */
+    public static Dataset<Row> persistDataset(final Dataset<Row> dataset) {
+        synchronized (PERSISTED_DATASETS) {
+            PERSISTED_DATASETS.add(dataset.persist(StorageLevel.MEMORY_AND_DISK()));
+        }
+        return dataset;
+    }
+
+    public static void unpersistDatasets() {
+        synchronized (PERSISTED_DATASETS) {
+            PERSISTED_DATASETS.forEach(Dataset::unpersist);
+            PERSISTED_DATASETS.clear();
+        }
+    }
+
+    public static void materializeCachedDataset() {
+        if (datasetCached != null) {
+            log.info(new ETLMetric(datasetCached.count(), "materialize cached dataset").toString());
+        }
+    }
+
     public static void setContextProperties(final ETLRunnerConfig config) {
         System.setProperty(DATABASE_PROP, config.getDatabase());
         System.setProperty(JOB_DATA_DIR_PROP, config.getJobDataDir());
@@ -72,6 +122,14 @@ public final class ContextUtil {
         System.setProperty(SAVE_INFO_TO_WAREHOUSE_PROP, String.valueOf(config.isSaveInfoToWarehouse()));
         System.setProperty(USER_KEEP_DAYS_PROP, String.valueOf(config.getUserKeepDays()));
         System.setProperty(ITEM_KEEP_DAYS_PROP, String.valueOf(config.getItemKeepDays()));
+        parquetWriteConfig = config.getParquetWriteConfig();
+    }
+
+    public static ParquetWriteConfig getParquetWriteConfig() {
+        if (parquetWriteConfig == null) {
+            return ParquetWriteConfig.fromSystemProperties();
+        }
+        return parquetWriteConfig;
     }
 
     public static void setJobAndWarehouseInfo(final String jobDataDir) {
@@ -87,6 +145,10 @@ public final class ContextUtil {
         return Boolean.parseBoolean(System.getProperty(DEBUG_LOCAL_PROP));
     }
 
+    public static boolean isDebugMetrics() {
+        return Boolean.parseBoolean(System.getProperty(DEBUG_METRICS_PROP, "false"));
+    }
+
     public static boolean isSaveToWarehouse() {
         return Boolean.parseBoolean(System.getProperty(SAVE_INFO_TO_WAREHOUSE_PROP, "false"));
     }
@@ -107,4 +169,99 @@ public final class ContextUtil {
     public static int getItemKeepDays() {
         return Integer.valueOf(System.getProperty(ITEM_KEEP_DAYS_PROP));
     }
+
+    public static String getIpEnrichMode() {
+        return System.getProperty(IP_ENRICH_MODE_PROP, "udf");
+    }
+
+    public static String getUaEnrichMode() {
+        return System.getProperty(UA_ENRICH_MODE_PROP, "udf");
+    }
+
+    public static String getKvConvertMode() {
+        return System.getProperty(KV_CONVERT_MODE_PROP, "udf");
+    }
+
+    public static boolean isKvTypeDictEnabled() {
+        return Boolean.parseBoolean(System.getProperty(KV_TYPE_DICT_ENABLED_PROP, "false"));
+    }
+
+    /**
+     * @return the fraction of the events whose event params are learned by the type dictionary, 1 learns all of them
+     */
+    public static double getKvTypeDictSampleFraction() {
+        return Double.parseDouble(System.getProperty(KV_TYPE_DICT_SAMPLE_FRACTION_PROP, "0.1"));
+    }
+
+    /**
+     * @return the max event param keys of an app in the type dictionary
+     */
+    public static int getKvTypeDictMaxKeysPerApp() {
+        return Integer.parseInt(System.getProperty(KV_TYPE_DICT_MAX_KEYS_PER_APP_PROP, "1000"));
+    }
+
+    public static int getUaCacheSize() {
+        return Integer.parseInt(System.getProperty(UA_CACHE_SIZE_PROP, "20000"));
+    }
+
+    public static int getIpCacheSize() {
+        return Integer.parseInt(System.getProperty(IP_CACHE_SIZE_PROP, "20000"));
+    }
+
+    public static String getSourceListMode() {
+        return System.getProperty(SOURCE_LIST_MODE_PROP, "day");
+    }
+
+    /**
+     * @return the days of source manifest kept before the checkpoint, 0 keeps all the days
+     */
+    public static int getSourceManifestKeepDays() {
+        return Integer.parseInt(System.getProperty(SOURCE_MANIFEST_KEEP_DAYS_PROP, "30"));
+    }
+
+    public static int getSourceParallelListingThreshold() {
+        return Integer.parseInt(System.getProperty(SOURCE_PARALLEL_LISTING_THRESHOLD_PROP, "8"));
+    }
+
+    public static int getSinkWriteParallelism() {
+        return Integer.parseInt(System.getProperty(SINK_WRITE_PARALLELISM_PROP, "4"));
+    }
+
+    public static long getOutputTargetFileSizeBytes() {
+        return Long.parseLong(System.getProperty(OUTPUT_TARGET_FILE_SIZE_MB_PROP, "-1")) * 1024 * 1024;
+    }
+
+    /**
+     * @return the parquet file bytes per byte of the row size estimated from the schema
+     */
+    public static double getOutputRowFileSizeRatio() {
+        return Double.parseDouble(System.getProperty(OUTPUT_ROW_FILE_SIZE_RATIO_PROP, "0.5"));
+    }
+
+    public static List<String> getOutputSortColumns() {
+        return Arrays.stream(System.getProperty(OUTPUT_SORT_COLUMNS_PROP, "").split(","))
+                .map(String::trim)
+                .filter(c -> !c.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    public static String getStatePruneMode() {
+        return System.getProperty(STATE_PRUNE_MODE_PROP, "broadcast");
+    }
+
+    public static boolean isStateKeyIndexEnabled() {
+        return Boolean.parseBoolean(System.getProperty(STATE_KEY_INDEX_ENABLED_PROP, "false"));
+    }
+
+    public static boolean isStateCompactEnabled() {
+        return Boolean.parseBoolean(System.getProperty(STATE_COMPACT_ENABLED_PROP, "true"));
+    }
+
+    public static int getStateCompactFileCount() {
+        return Integer.parseInt(System.getProperty(STATE_COMPACT_FILE_COUNT_PROP, "16"));
+    }
+
+    public static long getStateCompactTargetFileSizeBytes() {
+        return Long.parseLong(System.getProperty(STATE_COMPACT_TARGET_FILE_SIZE_MB_PROP, "128")) * 1024 * 1024;
+    }
 }
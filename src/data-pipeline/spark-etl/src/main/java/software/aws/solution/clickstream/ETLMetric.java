@@ -13,10 +13,30 @@
 
 package software.aws.solution.clickstream;
 
+import lombok.extern.slf4j.Slf4j;
 import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Observation;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.execution.QueryExecution;
+import org.apache.spark.sql.util.QueryExecutionListener;
+import scala.jdk.javaapi.CollectionConverters;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.spark.sql.functions.count;
+import static org.apache.spark.sql.functions.lit;
+
+@Slf4j
 public class ETLMetric {
+    private static final String ROW_COUNT = "row_count";
+    private static final String STAGE_PREFIX = "etl_stage:";
+    private static final AtomicLong STAGE_SEQ = new AtomicLong();
+    private static final Map<String, Long> STAGE_COUNTS = new ConcurrentHashMap<>();
+    private static SparkSession listenedSession;
+
     private final Long count;
     private final String info;
 
@@ -30,6 +50,79 @@ public class ETLMetric {
         this.info = info;
     }
 
+    /**
+     * Counts the rows of an intermediate stage. By default the count is observed by Dataset.observe and logged when
+     * the first write reading the stage finishes, so no extra job is run; a stage under a dataset persisted later is
+     * counted by the job filling the cache and is not reported, so observe the persisted dataset, not its input.
+     * With debug.metrics=true the stage is counted eagerly by an extra job and the dataset is returned as is.
+     *
+     * @param dataset the dataset of the stage
+     * @param info the stage name
+     * @return the dataset to read the stage from
+     */
+    public static Dataset<Row> debugCount(final Dataset<Row> dataset, final String info) {
+        if (ContextUtil.isDebugMetrics()) {
+            log.info(new ETLMetric(dataset, info).toString());
+            return dataset;
+        }
+        listenStageCounts(dataset.sparkSession());
+        // the name is unique, the same stage name may be observed on different plans of one query
+        String name = STAGE_PREFIX + info + "#" + STAGE_SEQ.incrementAndGet();
+        return dataset.observe(name, count(lit(1)).alias(ROW_COUNT));
+    }
+
+    /**
+     * @return the row count of the stage observed by {@link #debugCount(Dataset, String)}, null before it is reported
+     */
+    static Long getStageCount(final String info) {
+        return STAGE_COUNTS.entrySet().stream()
+                .filter(e -> stageInfo(e.getKey()).equals(info))
+                .map(Map.Entry::getValue)
+                .findFirst().orElse(null);
+    }
+
+    private static synchronized void listenStageCounts(final SparkSession spark) {
+        if (listenedSession == spark) {
+            return;
+        }
+        listenedSession = spark;
+        spark.listenerManager().register(new QueryExecutionListener() {
+            @Override
+            public void onSuccess(final String funcName, final QueryExecution qe, final long durationNs) {
+                CollectionConverters.asJava(qe.observedMetrics()).forEach((name, row) -> {
+                    // a stage read by several writes is logged once
+                    if (name.startsWith(STAGE_PREFIX) && STAGE_COUNTS.putIfAbsent(name, row.getLong(0)) == null) {
+                        log.info(new ETLMetric(row.getLong(0), stageInfo(name)).toString());
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final String funcName, final QueryExecution qe, final Exception exception) {
+                // the stage counts of a failed write are not logged
+            }
+        });
+    }
+
+    private static String stageInfo(final String name) {
+        return name.substring(STAGE_PREFIX.length(), name.lastIndexOf('#'));
+    }
+
+    /**
+     * Counts the rows of the action on the returned dataset by Dataset.observe, the metric is collected by the
+     * action itself, no filter is added to the plan and no extra job is run. Use it on the dataset written by a sink,
+     * and read the count by {@link #getRowCount(Observation)} after the write.
+     */
+    static Dataset<Row> observeRowCount(final Dataset<Row> dataset, final Observation observation) {
+        return dataset.observe(observation, count(lit(1)).alias(ROW_COUNT));
+    }
+
+    /**
+     * @return the row count of the finished action, it waits for the action when it is not finished
+     */
+    static long getRowCount(final Observation observation) {
+        return ((Number) observation.getAsJava().get(ROW_COUNT)).longValue();
+    }
 
     @Override
     public String toString() {
@@ -16,22 +16,40 @@ package software.aws.solution.clickstream;
 
 
 import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.SaveMode;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.RowFactory;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.plans.logical.LogicalPlan;
+import org.apache.spark.sql.execution.datasources.FileIndex;
+import org.apache.spark.sql.execution.datasources.HadoopFsRelation;
+import org.apache.spark.sql.execution.datasources.LogicalRelation;
+import org.apache.spark.sql.execution.datasources.PartitioningAwareFileIndex;
 import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.ArrayType;
 import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.MapType;
 import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
+import org.apache.spark.sql.Observation;
 import org.sparkproject.guava.annotations.VisibleForTesting;
 import software.aws.solution.clickstream.exception.ExecuteTransformerException;
+import software.aws.solution.clickstream.exception.ExtractDataException;
+
+import scala.jdk.javaapi.CollectionConverters;
 
 import javax.validation.constraints.NotEmpty;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.file.Paths;
+import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
@@ -39,17 +57,24 @@ import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.apache.spark.sql.functions.col;
-import static org.apache.spark.sql.functions.input_file_name;
-import static org.apache.spark.sql.functions.lit;
 import static org.apache.spark.sql.functions.date_format;
+import static org.apache.spark.sql.functions.hash;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.pmod;
+import static org.apache.spark.sql.functions.when;
 
 import static software.aws.solution.clickstream.ContextUtil.JOB_NAME_PROP;
 import static software.aws.solution.clickstream.ContextUtil.WAREHOUSE_DIR_PROP;
@@ -63,6 +88,15 @@ public class ETLRunner {
     public static final String PARTITION_MONTH = "partition_month";
     public static final String PARTITION_DAY = "partition_day";
     public static final String SINK = "sink";
+    public static final String SOURCE_LIST_MODE_PREFIX = "prefix";
+    public static final String SOURCE_LIST_MODE_MANIFEST = "manifest";
+    private static final String PARALLEL_LISTING_THRESHOLD_CONF = "spark.sql.sources.parallelPartitionDiscovery.threshold";
+    private static final String FILE_SALT = "_file_salt";
+    private static final String SOURCE_YEAR = "year";
+    private static final String SOURCE_MONTH = "month";
+    private static final String SOURCE_DAY = "day";
+    private static final int HOURS_OF_DAY = 24;
+    private static final int MAX_PATH_CHECK_THREADS = 16;
 
     public enum TableName {
         ODS_EVENTS("ods_events"),
@@ -82,6 +116,10 @@ public class ETLRunner {
     private final ETLRunnerConfig config;
 
     private boolean multipleOutDataset = false;
+    private SourceManifest sourceManifest;
+    private List<FileStatus> manifestFiles = new ArrayList<>();
+    private final Map<TableName, Dataset<Row>> transformedSinks = new LinkedHashMap<>();
+    private String postWriteTransformerClassName;
     public ETLRunner(final SparkSession spark, final ETLRunnerConfig config) {
         this.spark = spark;
         this.config = config;
@@ -93,14 +131,18 @@ public class ETLRunner {
         log.info(JOB_NAME_PROP + ":"  + System.getProperty(JOB_NAME_PROP));
         log.info(WAREHOUSE_DIR_PROP + ":"  + System.getProperty(WAREHOUSE_DIR_PROP));
 
-        Dataset<Row> dataset = readInputDataset(true);
-        ContextUtil.cacheDataset(dataset);
-        log.info(new ETLMetric(dataset, "source").toString());
+        Dataset<Row> sourceDataset = readInputDataset(true);
+        ContextUtil.cacheDataset(sourceDataset);
+        Dataset<Row> dataset = ETLMetric.debugCount(sourceDataset, "source");
 
         Dataset<Row> dataset2 = executeTransformers(dataset, config.getTransformerClassNames());
 
-        long resultCount = writeResultDataset(dataset2);
-        log.info(new ETLMetric(resultCount, SINK).toString());
+        writeResultDataset(dataset2);
+        ContextUtil.unpersistDatasets();
+        if (sourceManifest != null) {
+            // record the files only after the results are written, a failed job processes them again
+            sourceManifest.commit(manifestFiles, ContextUtil.getJobName());
+        }
     }
 
     private Dataset<Row> rePartitionInputDataset(final Dataset<Row> dataset) {
@@ -117,21 +159,85 @@ public class ETLRunner {
         return repDataset;
     }
 
+    /**
+     * Writes the event sink together with the event_parameter, item and user sinks of the V2 transform, then runs the
+     * postWrite of the first transformer. The sinks read the state tables, so postWrite, which merges and compacts
+     * the state tables, runs only after all of them are written.
+     */
     public long writeResultDataset(final Dataset<Row> dataset2) {
-        String outPath = config.getOutputPath();
-        TableName tableName = TableName.ODS_EVENTS;
-        if (this.multipleOutDataset) {
-            tableName = TableName.EVENT;
+        TableName tableName = this.multipleOutDataset ? TableName.EVENT : TableName.ODS_EVENTS;
+        Map<TableName, Dataset<Row>> sinks = new LinkedHashMap<>();
+        sinks.put(tableName, dataset2);
+        sinks.putAll(this.transformedSinks);
+        this.transformedSinks.clear();
+        Map<TableName, Long> resultCounts = writeResults(config.getOutputPath(), sinks);
+        resultCounts.forEach((tbName, count) -> {
+            if (tbName != tableName) {
+                log.info(new ETLMetric(count, SINK + " " + tbName.name).toString());
+            }
+        });
+        long resultCount = resultCounts.get(tableName);
+        log.info(new ETLMetric(resultCount, SINK).toString());
+        if (this.postWriteTransformerClassName != null) {
+            execPostWrite(dataset2.sparkSession(), this.postWriteTransformerClassName);
+        }
+        return resultCount;
+    }
+
+    /**
+     * Writes the sinks in one go: the cached parent dataset is computed once, then the sinks are written by
+     * concurrent jobs from the driver, so that the small tables do not leave the cluster idle.
+     */
+    private Map<TableName, Long> writeResults(final String outputPath, final Map<TableName, Dataset<Row>> sinks) {
+        if (sinks.size() > 1) {
+            ContextUtil.materializeCachedDataset();
+        }
+        int threads = Math.max(Math.min(sinks.size(), ContextUtil.getSinkWriteParallelism()), 1);
+        log.info("write sinks: " + sinks.keySet() + ", parallelism: " + threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Map<TableName, Future<Long>> futures = new LinkedHashMap<>();
+            sinks.forEach((tbName, dataset) -> futures.put(tbName, executor.submit(() -> writeResult(outputPath, dataset, tbName))));
+            Map<TableName, Long> resultCounts = new LinkedHashMap<>();
+            for (Map.Entry<TableName, Future<Long>> entry : futures.entrySet()) {
+                resultCounts.put(entry.getKey(), entry.getValue().get());
+            }
+            return resultCounts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecuteTransformerException(e);
+        } catch (ExecutionException e) {
+            log.error(e.getMessage());
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ExecuteTransformerException(e);
+        } finally {
+            executor.shutdownNow();
         }
-        return writeResult(outPath, dataset2, tableName);
     }
 
     public Dataset<Row> readInputDataset(final boolean checkModifiedTime) {
 
         String jobName = ContextUtil.getJobName();
 
-        List<String[]> partitions = getSourcePartition(config.getStartTimestamp(), config.getEndTimestamp());
-        List<String> sourcePaths = getSourcePaths(config.getSourcePath(), partitions);
+        String sourceListMode = ContextUtil.getSourceListMode();
+        log.info("source list mode: " + sourceListMode);
+        boolean prefixMode = SOURCE_LIST_MODE_PREFIX.equalsIgnoreCase(sourceListMode);
+        boolean manifestMode = SOURCE_LIST_MODE_MANIFEST.equalsIgnoreCase(sourceListMode);
+        List<String> sourcePaths;
+        if (manifestMode) {
+            this.sourceManifest = new SourceManifest(spark, ContextUtil.getWarehouseDir() + "/" + SourceManifest.MANIFEST_DIR);
+            this.manifestFiles = sourceManifest.listNewFiles(config.getSourcePath(),
+                    config.getStartTimestamp(), config.getEndTimestamp());
+            sourcePaths = manifestFiles.stream().map(s -> s.getPath().toString()).collect(Collectors.toList());
+        } else if (prefixMode) {
+            sourcePaths = getExistingPaths(getSourcePrefixPaths(config.getSourcePath(),
+                    config.getStartTimestamp(), config.getEndTimestamp()));
+        } else {
+            List<String[]> partitions = getSourcePartition(config.getStartTimestamp(), config.getEndTimestamp());
+            sourcePaths = getSourcePaths(config.getSourcePath(), partitions);
+        }
 
         String[] sourcePathsArray = sourcePaths.toArray(new String[]{});
 
@@ -182,46 +288,79 @@ public class ETLRunner {
             options.put("modifiedAfter", modifiedAfter);
             options.put("modifiedBefore", modifiedBefore);
         }
-        Dataset<Row> dataset = spark.read()
-                .options(options)
-                .schema(inputDataSchema)
-                .json(sourcePathsArray[0]);
-        log.info("read source " + 0 + ", path:" + sourcePathsArray[0]);
-        for (int i = 1; i < sourcePathsArray.length; i++) {
-            Dataset<Row> datasetTemp = spark.read()
+        if (sourcePathsArray.length == 0) {
+            log.info(new ETLMetric(0, "loaded input files").toString());
+            return spark.createDataFrame(new ArrayList<Row>(), inputDataSchema);
+        }
+        if (prefixMode || manifestMode) {
+            // hour paths or files are read as roots, keep 'hour' as partition column by discovering partitions from the source path
+            options.put("basePath", config.getSourcePath());
+        }
+
+        // one read over all paths, files of all the paths are listed by one file index (in parallel for many paths)
+        String listingThreshold = spark.conf().get(PARALLEL_LISTING_THRESHOLD_CONF);
+        spark.conf().set(PARALLEL_LISTING_THRESHOLD_CONF, String.valueOf(ContextUtil.getSourceParallelListingThreshold()));
+        Dataset<Row> dataset;
+        try {
+            dataset = spark.read()
                     .options(options)
                     .schema(inputDataSchema)
-                    .json(sourcePathsArray[i]);
-            log.info("read source " + i + ", path:" + sourcePathsArray[i]);
-            dataset = dataset.unionAll(datasetTemp);
+                    .json(sourcePathsArray);
+        } finally {
+            spark.conf().set(PARALLEL_LISTING_THRESHOLD_CONF, listingThreshold);
+        }
+        if (prefixMode || manifestMode) {
+            dataset = dataset.drop(SOURCE_YEAR, SOURCE_MONTH, SOURCE_DAY);
         }
 
-        if (config.isSaveInfoToWarehouse()) {
-            Dataset<Row> readFileDataset = spark.read().format("binaryFile").options(options).load(sourcePathsArray[0]);
-            for (int i = 1; i < sourcePathsArray.length; i++) {
-                Dataset<Row> fileDatasetTemp = spark.read().format("binaryFile").options(options).load(sourcePathsArray[i]);
-                readFileDataset = readFileDataset.unionAll(fileDatasetTemp);
-            }
+        // the files come from the file index of the read, which is already filtered by the read options
+        List<FileStatus> inputFiles = getInputFiles(dataset);
+        inputFiles.stream().sorted(Comparator.comparing(FileStatus::getModificationTime))
+                .forEach(f -> log.info("path: " + f.getPath()));
+        log.info(new ETLMetric(inputFiles.size(), "loaded input files").toString());
 
-            readFileDataset = readFileDataset.select(col("path"), col("modificationTime"), col("length"));
-            log.info(new ETLMetric(readFileDataset, "loaded files").toString());
-            readFileDataset = readFileDataset.withColumn(JOB_NAME_COL, lit(jobName));
-            readFileDataset.cache();
-            readFileDataset.takeAsList(Integer.MAX_VALUE).stream()
-                    .sorted(Comparator.comparing(r -> r.getAs("modificationTime"))).forEach(r -> log.info("path: " + r.getAs("path")));
-            String path = System.getProperty(WAREHOUSE_DIR_PROP) + "/etl_load_files";
-            readFileDataset.coalesce(1).write().mode(SaveMode.Append).partitionBy(JOB_NAME_COL)
-                    .option("path", path).saveAsTable(config.getDatabase() + ".etl_load_files");
+        if (config.isSaveInfoToWarehouse()) {
+            saveLoadedFiles(inputFiles, jobName);
         }
 
-        List<Row> inputFiles = dataset.select(input_file_name().alias("fileName")).distinct().collectAsList();
-        inputFiles.forEach(row -> log.info(row.getAs("fileName")));
-        long fileNameCount = inputFiles.size();
-        log.info(new ETLMetric(fileNameCount, "loaded input files").toString());
-
         return rePartitionInputDataset(dataset);
     }
 
+    /**
+     * The files listed by the file index of the dataset, no job is run to get them.
+     */
+    static List<FileStatus> getInputFiles(final Dataset<Row> dataset) {
+        List<FileStatus> files = new ArrayList<>();
+        for (LogicalPlan leaf : CollectionConverters.asJava(dataset.queryExecution().analyzed().collectLeaves())) {
+            if (leaf instanceof LogicalRelation && ((LogicalRelation) leaf).relation() instanceof HadoopFsRelation) {
+                FileIndex location = ((HadoopFsRelation) ((LogicalRelation) leaf).relation()).location();
+                if (location instanceof PartitioningAwareFileIndex) {
+                    files.addAll(CollectionConverters.asJava(((PartitioningAwareFileIndex) location).allFiles()));
+                }
+            }
+        }
+        return files;
+    }
+
+    private void saveLoadedFiles(final List<FileStatus> inputFiles, final String jobName) {
+        StructType loadFileSchema = DataTypes.createStructType(new StructField[]{
+                DataTypes.createStructField("path", DataTypes.StringType, true),
+                DataTypes.createStructField("modificationTime", DataTypes.TimestampType, true),
+                DataTypes.createStructField("length", DataTypes.LongType, true),
+                DataTypes.createStructField(JOB_NAME_COL, DataTypes.StringType, true),
+        });
+        List<Row> loadedFiles = inputFiles.stream().map(f -> RowFactory.create(
+                f.getPath().toString(),
+                new Timestamp(f.getModificationTime()),
+                f.getLen(),
+                jobName
+        )).collect(Collectors.toList());
+        log.info(new ETLMetric(loadedFiles.size(), "loaded files").toString());
+        String path = System.getProperty(WAREHOUSE_DIR_PROP) + "/etl_load_files";
+        spark.createDataFrame(loadedFiles, loadFileSchema).coalesce(1).write().mode(SaveMode.Append).partitionBy(JOB_NAME_COL)
+                .option("path", path).saveAsTable(config.getDatabase() + ".etl_load_files");
+    }
+
     @VisibleForTesting
     public Dataset<Row> executeTransformers(final Dataset<Row> dataset,
                                             final @NotEmpty List<String> transformerClassNames) {
@@ -230,6 +369,7 @@ public class ETLRunner {
             log.info("executeTransformer: " + transformerClassName);
             result = executeTransformer(result, transformerClassName);
         }
+        this.postWriteTransformerClassName = transformerClassNames.get(0);
         return execPostTransform(result, transformerClassNames.get(0));
     }
 
@@ -270,6 +410,22 @@ public class ETLRunner {
         return resultDataset;
     }
 
+    private static void execPostWrite(final SparkSession spark, final String transformerClassName) {
+        String mName = "postWrite";
+        try {
+            Class<?> transformClass = Class.forName(transformerClassName);
+            Method postWrite = transformClass.getDeclaredMethod(mName, SparkSession.class);
+            log.info("find method: " + postWrite.getName());
+            Object instance = transformClass.getDeclaredConstructor().newInstance();
+            postWrite.invoke(instance, spark);
+        } catch (NoSuchMethodException ignored) {
+            log.info("did not find method: " + mName);
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            throw new ExecuteTransformerException(e);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private Dataset<Row> executeTransformer(final Dataset<Row> dataset, final String transformerClassName) {
         try {
@@ -308,28 +464,27 @@ public class ETLRunner {
         Dataset<Row> evenParamDataset = transformedDatasets.get(1);
         Dataset<Row> itemDataset = transformedDatasets.get(2);
         Dataset<Row> userDataset = transformedDatasets.get(3);
-        String outPath = config.getOutputPath();
-        long evenParamDatasetCount = writeResult(outPath, evenParamDataset, TableName.EVEN_PARAMETER);
-        log.info(new ETLMetric(evenParamDatasetCount, SINK + " " + TableName.EVEN_PARAMETER.name).toString());
-
+        // written together with the event sink by writeResultDataset
+        this.transformedSinks.put(TableName.EVEN_PARAMETER, evenParamDataset);
         if (itemDataset != null) {
-            long itemDatasetCount = writeResult(outPath, itemDataset, TableName.ITEM);
-            log.info(new ETLMetric(itemDatasetCount, SINK + " " + TableName.ITEM.name).toString());
+            this.transformedSinks.put(TableName.ITEM, itemDataset);
         }
         if (userDataset != null) {
-            long userDatasetCount = writeResult(outPath, userDataset, TableName.USER);
-            log.info(new ETLMetric(userDatasetCount, SINK + " " + TableName.USER.name).toString());
+            this.transformedSinks.put(TableName.USER, userDataset);
         }
     }
 
     protected long writeResult(final String outputPath, final Dataset<Row> dataset, final TableName tbName) {
-        Dataset<Row> partitionedDataset = prepareForPartition(dataset, tbName);
-        long resultCount = partitionedDataset.count();
-        log.info(new ETLMetric(resultCount, "writeResult for table " + tbName).toString());
-        log.info("outputPath: " + outputPath);
-        if (resultCount == 0) {
-            return 0L;
+        // the rows are counted by the write job itself, no extra job to count them before the write
+        Observation writtenRows = new Observation("writeResult for table " + tbName);
+        String[] partitionBy = new String[]{PARTITION_APP, PARTITION_YEAR, PARTITION_MONTH, PARTITION_DAY};
+        Dataset<Row> preparedDataset = prepareForPartition(dataset, tbName);
+        long targetFileSize = ContextUtil.getOutputTargetFileSizeBytes();
+        if (targetFileSize > 0) {
+            preparedDataset = repartitionByTargetFileSize(preparedDataset, targetFileSize, partitionBy);
         }
+        Dataset<Row> partitionedDataset = ETLMetric.observeRowCount(preparedDataset, writtenRows);
+        log.info("outputPath: " + outputPath);
         String saveOutputPath = outputPath;
         if (!(saveOutputPath.endsWith(tbName.name + "/")
                 || saveOutputPath.endsWith(tbName.name))) {
@@ -338,11 +493,12 @@ public class ETLRunner {
         }
         log.info("saveOutputPath: " + saveOutputPath);
 
-        String[] partitionBy = new String[]{PARTITION_APP, PARTITION_YEAR, PARTITION_MONTH, PARTITION_DAY};
         if ("json".equalsIgnoreCase(config.getOutPutFormat())) {
             partitionedDataset.write().partitionBy(partitionBy).mode(SaveMode.Append).json(saveOutputPath);
         } else {
-            if (tbName == TableName.ITEM || tbName == TableName.USER) {
+            if (targetFileSize > 0) {
+                log.info("target file size: " + targetFileSize + ", skip coalesce");
+            } else if (tbName == TableName.ITEM || tbName == TableName.USER) {
                 int numPartitions = partitionedDataset.rdd().getNumPartitions();
                 numPartitions = Math.max(Math.min(numPartitions, 5), 1);
                 partitionedDataset = partitionedDataset.coalesce(numPartitions);
@@ -355,13 +511,88 @@ public class ETLRunner {
                     partitionedDataset = partitionedDataset.coalesce(outPartitions);
                 }
             }
+            if (tbName == TableName.ODS_EVENTS || tbName == TableName.EVENT) {
+                partitionedDataset = sortWithinOutputPartitions(partitionedDataset, partitionBy);
+            }
+            Map<String, String> writeOptions = config.getParquetWriteConfig().getWriteOptions(tbName.name);
+            log.info("parquet write options for table " + tbName + ": " + writeOptions);
             partitionedDataset.write()
-                    .option("compression", "snappy")
+                    .options(writeOptions)
                     .partitionBy(partitionBy).mode(SaveMode.Append).parquet(saveOutputPath);
         }
+        long resultCount = ETLMetric.getRowCount(writtenRows);
+        log.info(new ETLMetric(resultCount, "writeResult for table " + tbName).toString());
+        if (resultCount == 0) {
+            // the partitioned write of an empty dataset adds no partition and no data file
+            log.info("empty result for table " + tbName);
+        }
         return resultCount;
     }
 
+    /**
+     * Sorts the rows of each task by the output partition columns and then by output.sort.columns, so that the
+     * row groups of a file cover narrow ranges of the sort columns and their min/max statistics can skip row groups.
+     * The partition columns come first, which is the order the partitioned writer requires, so no other sort is added.
+     */
+    private Dataset<Row> sortWithinOutputPartitions(final Dataset<Row> dataset, final String[] partitionBy) {
+        List<String> sortColumns = ContextUtil.getOutputSortColumns();
+        if (sortColumns.isEmpty()) {
+            return dataset;
+        }
+        List<String> colNames = Arrays.asList(dataset.columns());
+        List<Column> sortCols = Arrays.stream(partitionBy).map(functions::col).collect(Collectors.toList());
+        for (String sortColumn : sortColumns) {
+            if (colNames.contains(sortColumn)) {
+                sortCols.add(col(sortColumn));
+            } else {
+                log.warn("sort column does not exist: " + sortColumn);
+            }
+        }
+        log.info("sort within partitions by: " + sortCols);
+        return dataset.sortWithinPartitions(sortCols.toArray(new Column[]{}));
+    }
+
+    /**
+     * Repartitions the rows so that each partition_app/year/month/day bucket is written by about one task per target
+     * file size. The rows of each bucket are counted by a job which reads only the partition columns, the file bytes of
+     * a row are estimated from the schema with output.row.file.size.ratio, and a bucket over the target size is split
+     * into more tasks by a hash of the row. Only the final stage of the write is sized, the session conf and the other
+     * shuffles of the query are not changed.
+     */
+    private Dataset<Row> repartitionByTargetFileSize(final Dataset<Row> dataset, final long targetFileSize,
+                                                     final String[] partitionBy) {
+        Column[] partitionCols = Arrays.stream(partitionBy).map(functions::col).toArray(Column[]::new);
+        double rowFileBytes = Math.max(dataset.schema().defaultSize() * ContextUtil.getOutputRowFileSizeRatio(), 1.0);
+        Column fileCount = lit(1);
+        int numPartitions = 0;
+        for (Row bucket : dataset.groupBy(partitionCols).count().collectAsList()) {
+            int bucketFiles = (int) Math.max(1L, (long) Math.ceil(bucket.getLong(partitionBy.length) * rowFileBytes / targetFileSize));
+            numPartitions += bucketFiles;
+            if (bucketFiles > 1) {
+                Column isBucket = lit(true);
+                for (int i = 0; i < partitionBy.length; i++) {
+                    isBucket = isBucket.and(partitionCols[i].eqNullSafe(lit(bucket.get(i))));
+                }
+                fileCount = when(isBucket, lit(bucketFiles)).otherwise(fileCount);
+            }
+        }
+        numPartitions = Math.max(numPartitions, 1);
+        log.info("target file size: " + targetFileSize + ", estimated row file bytes: " + rowFileBytes
+                + ", output partitions: " + numPartitions);
+        // the nested columns are not hashed, they may have a map, whose hash is not supported
+        Column[] hashCols = Arrays.stream(dataset.schema().fields())
+                .filter(f -> !(f.dataType() instanceof MapType || f.dataType() instanceof ArrayType
+                        || f.dataType() instanceof StructType))
+                .map(f -> col(f.name()))
+                .toArray(Column[]::new);
+        Column salt = hashCols.length == 0 ? lit(0) : pmod(hash(hashCols), fileCount);
+        Column[] repartitionCols = Arrays.copyOf(partitionCols, partitionCols.length + 1);
+        repartitionCols[partitionCols.length] = col(FILE_SALT);
+        return dataset.withColumn(FILE_SALT, salt)
+                .repartition(numPartitions, repartitionCols)
+                .drop(FILE_SALT);
+    }
+
     private Dataset<Row> prepareForPartition(final Dataset<Row> dataset, final TableName tbName) {
         List<String> colNames = Arrays.asList(dataset.columns());
         String appId = "app_id";
@@ -404,6 +635,89 @@ public class ETLRunner {
                 "year=" + p[0], "month=" + p[1], "day=" + p[2])).collect(Collectors.toList());
     }
 
+    /**
+     * Source prefixes for (startTimestamp, endTimestamp]: the day prefix when the whole day is in the range,
+     * otherwise only the hour prefixes of the day. One more hour is added before startTimestamp, because
+     * a file can be modified in the hour after the hour of its partition.
+     */
+    @VisibleForTesting
+    static List<String> getSourcePrefixPaths(final String sourceDir, final long milliSecStart, final long milliSecEnd) {
+        long oneHourMilliSec = 3600 * 1000L;
+        Map<String, List<String>> dayHours = new LinkedHashMap<>();
+        long startHour = milliSecStart / oneHourMilliSec - 1;
+        long endHour = milliSecEnd / oneHourMilliSec;
+        for (long hour = startHour; hour <= endHour; hour++) {
+            ZonedDateTime hourDatetime = Instant.ofEpochMilli(hour * oneHourMilliSec).atZone(ZoneId.of("UTC"));
+            String dayPrefix = sourceDir + String.join("/",
+                    "year=" + hourDatetime.getYear(),
+                    "month=" + twoDigits(hourDatetime.getMonthValue()),
+                    "day=" + twoDigits(hourDatetime.getDayOfMonth()));
+            dayHours.computeIfAbsent(dayPrefix, k -> new ArrayList<>()).add("hour=" + twoDigits(hourDatetime.getHour()));
+        }
+        List<String> paths = new ArrayList<>();
+        dayHours.forEach((dayPrefix, hours) -> {
+            if (hours.size() == HOURS_OF_DAY) {
+                paths.add(dayPrefix);
+            } else {
+                hours.forEach(hour -> paths.add(dayPrefix + "/" + hour));
+            }
+        });
+        return paths;
+    }
+
+    private List<String> getExistingPaths(final List<String> paths) {
+        List<Boolean> exists = mapPathsInParallel(spark.sparkContext().hadoopConfiguration(), paths, FileSystem::exists);
+        List<String> existingPaths = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i++) {
+            if (exists.get(i)) {
+                existingPaths.add(paths.get(i));
+            }
+        }
+        log.info("source prefixes: " + paths.size() + ", existing: " + existingPaths.size());
+        if (existingPaths.isEmpty()) {
+            // nothing to prune, let the reader report the missing path
+            return paths.subList(paths.size() - 1, paths.size());
+        }
+        return existingPaths;
+    }
+
+    interface PathFunction<T> {
+        T apply(FileSystem fs, Path path) throws IOException;
+    }
+
+    /**
+     * Applies the function to the paths with a small thread pool on the driver, the results are in the order of the paths.
+     */
+    static <T> List<T> mapPathsInParallel(final Configuration hadoopConf, final List<String> paths, final PathFunction<T> function) {
+        int threads = Math.max(Math.min(paths.size(), MAX_PATH_CHECK_THREADS), 1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (String p : paths) {
+                futures.add(executor.submit(() -> {
+                    Path path = new Path(p);
+                    return function.apply(path.getFileSystem(hadoopConf), path);
+                }));
+            }
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExtractDataException(e);
+        } catch (ExecutionException e) {
+            throw new ExtractDataException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String twoDigits(final int value) {
+        return String.valueOf(value + 100).substring(1, 3);
+    }
+
     private String[] getUTCYearMonthDay(final long timestamp) {
         ZonedDateTime endDateDatetime = Instant.ofEpochMilli(timestamp).atZone(ZoneId.of("UTC"));
         String year = String.valueOf(endDateDatetime.getYear());
@@ -60,11 +60,25 @@ public class ETLRunnerConfig {
     @NotNull
     private final int itemKeepDays;
 
+    @NotNull
+    private final ParquetWriteConfig parquetWriteConfig;
+
     public ETLRunnerConfig(
             @NotNull final TransformationConfig transformationConfig,
             @NotNull final InputOutputConfig inputOutputConfig,
             @NotNull final TimestampConfig timestampConfig,
             @NotNull final PartitionConfig partitionConfig
+    ) {
+        this(transformationConfig, inputOutputConfig, timestampConfig, partitionConfig,
+                ParquetWriteConfig.fromSystemProperties());
+    }
+
+    public ETLRunnerConfig(
+            @NotNull final TransformationConfig transformationConfig,
+            @NotNull final InputOutputConfig inputOutputConfig,
+            @NotNull final TimestampConfig timestampConfig,
+            @NotNull final PartitionConfig partitionConfig,
+            @NotNull final ParquetWriteConfig parquetWriteConfig
     ) {
         this.saveInfoToWarehouse = Boolean.valueOf(inputOutputConfig.getSaveInfoToWarehouse());
         this.database = inputOutputConfig.getDatabase();
@@ -83,6 +97,7 @@ public class ETLRunnerConfig {
         this.sourcePath = inputOutputConfig.getSourcePath();
         this.userKeepDays = transformationConfig.getUserKeepDays();
         this.itemKeepDays = transformationConfig.getItemKeepDays();
+        this.parquetWriteConfig = parquetWriteConfig;
     }
 
     public boolean isSaveInfoToWarehouse() {
@@ -153,6 +168,10 @@ public class ETLRunnerConfig {
         return itemKeepDays;
     }
 
+    public ParquetWriteConfig getParquetWriteConfig() {
+        return parquetWriteConfig;
+    }
+
     @AllArgsConstructor
     @Getter
     static class PartitionConfig {
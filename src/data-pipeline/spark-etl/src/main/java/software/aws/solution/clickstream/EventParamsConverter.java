@@ -17,25 +17,41 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import software.aws.solution.clickstream.KvTypeDictionary.ValueType;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 import static org.apache.spark.sql.functions.col;
+import static software.aws.solution.clickstream.KvConverter.KV_CONVERT_MODE_CATALYST;
+import static software.aws.solution.clickstream.TransformerV2.APP_ID;
 
 @Slf4j
 public class EventParamsConverter {
+    private static final String EVENT_PARAMS = "event_params";
+    private static final List<String> EXCLUDE_ATTRIBUTES = Arrays.asList(
+            "_privacy_info_ads_storage",
+            "_privacy_info_analytics_storage",
+            "_privacy_info_uses_transient_token",
+            "_traffic_source_medium",
+            "_traffic_source_name",
+            "_traffic_source_source",
+            "_channel"
+    );
+
     public Dataset<Row> transform(final Dataset<Row> dataset) {
         Column fromColumn = col("data").getItem("attributes");
-        return new KvConverter().transform(dataset, fromColumn, "event_params",
-                Arrays.asList(
-                        "_privacy_info_ads_storage",
-                        "_privacy_info_analytics_storage",
-                        "_privacy_info_uses_transient_token",
-                        "_traffic_source_medium",
-                        "_traffic_source_name",
-                        "_traffic_source_source",
-                        "_channel"
-                )
-        );
+        // the catalyst mode does not convert by the value types
+        if (!ContextUtil.isKvTypeDictEnabled() || KV_CONVERT_MODE_CATALYST.equalsIgnoreCase(ContextUtil.getKvConvertMode())) {
+            return new KvConverter().transform(dataset, fromColumn, EVENT_PARAMS, EXCLUDE_ATTRIBUTES);
+        }
+        Column appIdColumn = col("data").getItem(APP_ID);
+        KvTypeDictionary typeDictionary = new KvTypeDictionary(dataset.sparkSession(),
+                ContextUtil.getWarehouseDir() + "/" + KvTypeDictionary.DICTIONARY_DIR);
+        // learned before the conversion, so the run is converted by the types of its own sample too
+        HashMap<String, HashMap<String, ValueType>> keyTypes = typeDictionary.learn(dataset, appIdColumn, fromColumn,
+                EXCLUDE_ATTRIBUTES, ContextUtil.getKvTypeDictSampleFraction(), ContextUtil.getKvTypeDictMaxKeysPerApp());
+        return new KvConverter().transform(dataset, fromColumn, appIdColumn, EVENT_PARAMS, EXCLUDE_ATTRIBUTES, keyTypes);
     }
 }
@@ -21,19 +21,29 @@ import com.maxmind.db.Reader;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.spark.SparkFiles;
+import org.apache.spark.api.java.function.MapPartitionsFunction;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SaveMode;
 import org.apache.spark.sql.api.java.UDF2;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
 import org.apache.spark.sql.catalyst.expressions.GenericRow;
 import org.apache.spark.sql.expressions.UserDefinedFunction;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.apache.spark.sql.functions.col;
 import static org.apache.spark.sql.functions.udf;
@@ -42,8 +52,15 @@ import static software.aws.solution.clickstream.Transformer.GEO_FOR_ENRICH;
 
 @Slf4j
 public class IPEnrichment {
+    public static final String GEO = "geo";
+    public static final String IP_ENRICH_MODE_PARTITION = "partition";
+    public static final String GEO_DB_FILE_NAME = "GeoLite2-City.mmdb";
+    private static final int GEO_CACHE_CAPACITY = 1024 * 128;
+    private static final AtomicInteger OPENED_READER_COUNT = new AtomicInteger();
+    private static volatile SharedReader sharedReader;
+
     public Dataset<Row> transform(final Dataset<Row> dataset) {
-        UserDefinedFunction udfEnrichIP = udf(enrich(), DataTypes.createStructType(
+        StructType geoType = DataTypes.createStructType(
                 new StructField[]{
                         DataTypes.createStructField("city", DataTypes.StringType, true),
                         DataTypes.createStructField("continent", DataTypes.StringType, true),
@@ -54,12 +71,22 @@ public class IPEnrichment {
                         DataTypes.createStructField("sub_continent", DataTypes.StringType, true),
                         DataTypes.createStructField("locale", DataTypes.StringType, true),
                 }
-        ));
-        Dataset<Row> ipEnrichDataset = dataset.withColumn("geo",
-                udfEnrichIP.apply(
-                        col(GEO_FOR_ENRICH).getItem("ip"),
-                        col(GEO_FOR_ENRICH).getItem("locale")
-                )).drop(GEO_FOR_ENRICH);
+        );
+        String enrichMode = ContextUtil.getIpEnrichMode();
+        log.info("ip enrich mode: " + enrichMode);
+        Dataset<Row> ipEnrichDataset;
+        if (IP_ENRICH_MODE_PARTITION.equalsIgnoreCase(enrichMode)) {
+            int cacheSize = ContextUtil.getIpCacheSize();
+            log.info("ip cache size: " + cacheSize);
+            ipEnrichDataset = enrichByPartition(dataset, geoType, cacheSize);
+        } else {
+            UserDefinedFunction udfEnrichIP = udf(enrich(), geoType);
+            ipEnrichDataset = dataset.withColumn(GEO,
+                    udfEnrichIP.apply(
+                            col(GEO_FOR_ENRICH).getItem("ip"),
+                            col(GEO_FOR_ENRICH).getItem("locale")
+                    )).drop(GEO_FOR_ENRICH);
+        }
 
         if (ContextUtil.isDebugLocal()) {
             ipEnrichDataset.write().mode(SaveMode.Overwrite).json(DEBUG_LOCAL_PATH + "/enrich-ip-Dataset/");
@@ -67,33 +94,212 @@ public class IPEnrichment {
         return ipEnrichDataset;
     }
 
+    private static Dataset<Row> enrichByPartition(final Dataset<Row> dataset, final StructType geoType, final int cacheSize) {
+        StructType inputSchema = dataset.schema();
+        int enrichIndex = inputSchema.fieldIndex(GEO_FOR_ENRICH);
+        StructType enrichType = (StructType) inputSchema.fields()[enrichIndex].dataType();
+        int ipIndex = enrichType.fieldIndex("ip");
+        int localeIndex = enrichType.fieldIndex("locale");
+
+        // same layout as withColumn(GEO).drop(GEO_FOR_ENRICH): geo is replaced in place or appended
+        List<StructField> outputFields = new ArrayList<>();
+        int[] sourceIndexes = new int[inputSchema.size()];
+        int geoIndex = -1;
+        for (int i = 0; i < inputSchema.size(); i++) {
+            StructField field = inputSchema.fields()[i];
+            if (GEO_FOR_ENRICH.equals(field.name())) {
+                continue;
+            }
+            if (GEO.equals(field.name())) {
+                geoIndex = outputFields.size();
+                outputFields.add(DataTypes.createStructField(GEO, geoType, true));
+            } else {
+                sourceIndexes[outputFields.size()] = i;
+                outputFields.add(field);
+            }
+        }
+        if (geoIndex < 0) {
+            geoIndex = outputFields.size();
+            outputFields.add(DataTypes.createStructField(GEO, geoType, true));
+        }
+        StructType outputSchema = DataTypes.createStructType(outputFields);
+        int outputGeoIndex = geoIndex;
+        int[] outputSourceIndexes = Arrays.copyOf(sourceIndexes, outputFields.size());
+
+        return dataset.mapPartitions((MapPartitionsFunction<Row, Row>) rows ->
+                new GeoPartitionIterator(rows, new int[]{enrichIndex, ipIndex, localeIndex, outputGeoIndex}, outputSourceIndexes,
+                        cacheSize),
+                RowEncoder.apply(outputSchema));
+    }
+
     private UDF2<String, String, Row> enrich() {
         return (ipValue, localeValue) -> {
-            GenericRow defaultRow = new GenericRow(
-                    new Object[]{null, null, null, null, null, null, localeValue}
-            );
-            try (Reader reader = new Reader(new File(SparkFiles.get("GeoLite2-City.mmdb")),
-                    new CHMCache(1024 * 128))) {
-                InetAddress address = InetAddress.getByName(ipValue);
-                LookupResult result = reader.get(address, LookupResult.class);
-                return Optional.ofNullable(result)
-                        .map(geo -> new GenericRow(new Object[]{
-                                Optional.ofNullable(geo.getCity()).map(LookupResult.City::getName).orElse(null),
-                                Optional.ofNullable(geo.getContinent()).map(LookupResult.Continent::getName).orElse(null),
-                                Optional.ofNullable(geo.getCountry()).map(LookupResult.Country::getName).orElse(null),
-                                null,
-                                null,
-                                null,
-                                localeValue
-                        }))
-                        .orElse(defaultRow);
-            } catch (Exception e) {
-                log.warn(e.getMessage());
-                return defaultRow;
-            }
+            String[] geoNames = lookupGeoNames(ipValue);
+            return new GenericRow(new Object[]{
+                    geoNames[0],
+                    geoNames[1],
+                    geoNames[2],
+                    null,
+                    null,
+                    null,
+                    localeValue
+            });
         };
     }
 
+    /**
+     * @return names of city, continent and country, the names are null if the ip cannot be resolved
+     */
+    private static String[] lookupGeoNames(final String ipValue) {
+        try {
+            Reader reader = getSharedReader();
+            InetAddress address = InetAddress.getByName(ipValue);
+            LookupResult result = reader.get(address, LookupResult.class);
+            return Optional.ofNullable(result)
+                    .map(geo -> new String[]{
+                            Optional.ofNullable(geo.getCity()).map(LookupResult.City::getName).orElse(null),
+                            Optional.ofNullable(geo.getContinent()).map(LookupResult.Continent::getName).orElse(null),
+                            Optional.ofNullable(geo.getCountry()).map(LookupResult.Country::getName).orElse(null),
+                    })
+                    .orElse(new String[3]);
+        } catch (Exception e) {
+            log.warn(e.getMessage());
+            return new String[3];
+        }
+    }
+
+    /**
+     * Resolves the ips of a partition with an LRU cache of the resolved names, rows with a recently seen ip reuse its names.
+     */
+    private static final class GeoPartitionIterator implements Iterator<Row> {
+        private final Iterator<Row> rows;
+        private final int enrichIndex;
+        private final int ipIndex;
+        private final int localeIndex;
+        private final int geoIndex;
+        private final int[] sourceIndexes;
+        private final Map<String, String[]> geoNamesByIp;
+        private long rowCount = 0L;
+        private long missCount = 0L;
+        private boolean reported = false;
+
+        private GeoPartitionIterator(final Iterator<Row> rows, final int[] indexes, final int[] sourceIndexes, final int cacheSize) {
+            this.rows = rows;
+            this.enrichIndex = indexes[0];
+            this.ipIndex = indexes[1];
+            this.localeIndex = indexes[2];
+            this.geoIndex = indexes[3];
+            this.sourceIndexes = sourceIndexes;
+            this.geoNamesByIp = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, String[]> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = rows.hasNext();
+            if (!hasNext && !reported) {
+                reported = true;
+                reportHitRatio();
+            }
+            return hasNext;
+        }
+
+        @Override
+        public Row next() {
+            Row row = rows.next();
+            rowCount++;
+            Row geoForEnrich = row.getStruct(enrichIndex);
+            String ipValue = null;
+            String localeValue = null;
+            if (geoForEnrich != null) {
+                ipValue = geoForEnrich.getString(ipIndex);
+                localeValue = geoForEnrich.getString(localeIndex);
+            }
+            String[] geoNames = geoNamesByIp.get(ipValue);
+            if (geoNames == null) {
+                missCount++;
+                geoNames = lookupGeoNames(ipValue);
+                geoNamesByIp.put(ipValue, geoNames);
+            }
+
+            Object[] values = new Object[sourceIndexes.length];
+            for (int i = 0; i < values.length; i++) {
+                if (i != geoIndex) {
+                    values[i] = row.get(sourceIndexes[i]);
+                }
+            }
+            values[geoIndex] = new GenericRow(new Object[]{
+                    geoNames[0], geoNames[1], geoNames[2], null, null, null, localeValue
+            });
+            return new GenericRow(values);
+        }
+
+        private void reportHitRatio() {
+            if (rowCount == 0) {
+                return;
+            }
+            double hitRatio = (double) (rowCount - missCount) / rowCount;
+            log.info(String.format("[IPEnrichment] partition rows: %d, ip lookups: %d, cached ips: %d, ip hit ratio: %.4f",
+                    rowCount, missCount, geoNamesByIp.size(), hitRatio));
+        }
+    }
+
+    /**
+     * The reader is opened once per executor JVM and shared by all tasks, so the node cache
+     * stays warm across rows and partitions. A new reader is only opened when the db file path
+     * changes, which happens when a new SparkContext is created in the same JVM.
+     */
+    static Reader getSharedReader() throws IOException {
+        String dbFilePath = SparkFiles.get(GEO_DB_FILE_NAME);
+        SharedReader current = sharedReader;
+        if (current != null && current.path.equals(dbFilePath)) {
+            return current.reader;
+        }
+        synchronized (IPEnrichment.class) {
+            current = sharedReader;
+            if (current == null || !current.path.equals(dbFilePath)) {
+                Reader reader = new Reader(new File(dbFilePath), Reader.FileMode.MEMORY_MAPPED,
+                        new CHMCache(GEO_CACHE_CAPACITY));
+                OPENED_READER_COUNT.incrementAndGet();
+                log.info("opened shared geo reader, path: " + dbFilePath);
+                if (current != null) {
+                    closeReader(current.reader);
+                }
+                current = new SharedReader(dbFilePath, reader);
+                sharedReader = current;
+            }
+            return current.reader;
+        }
+    }
+
+    static int getOpenedReaderCount() {
+        return OPENED_READER_COUNT.get();
+    }
+
+    private static void closeReader(final Reader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            log.warn("close geo reader error:" + e.getMessage());
+        }
+    }
+
+    private static final class SharedReader {
+        private final String path;
+        private final Reader reader;
+
+        private SharedReader(final String path, final Reader reader) {
+            this.path = path;
+            this.reader = reader;
+        }
+    }
+
     public static class LookupResult {
 
         @Getter
@@ -13,27 +13,42 @@
 
 package software.aws.solution.clickstream;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SaveMode;
 import org.apache.spark.sql.api.java.UDF1;
+import org.apache.spark.sql.api.java.UDF2;
 import org.apache.spark.sql.catalyst.expressions.GenericRow;
 import org.apache.spark.sql.expressions.UserDefinedFunction;
+import org.apache.spark.sql.types.ArrayType;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
 import org.jetbrains.annotations.NotNull;
+import software.aws.solution.clickstream.KvTypeDictionary.ValueType;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import static org.apache.spark.sql.functions.expr;
+import static org.apache.spark.sql.functions.from_json;
 import static org.apache.spark.sql.functions.udf;
 import static software.aws.solution.clickstream.ContextUtil.DEBUG_LOCAL_PROP;
 import static software.aws.solution.clickstream.ETLRunner.DEBUG_LOCAL_PATH;
@@ -47,32 +62,69 @@ import static software.aws.solution.clickstream.Transformer.STRING_VALUE;
 
 @Slf4j
 public class KvConverter {
+    public static final String KV_CONVERT_MODE_UDF = "udf";
+    public static final String KV_CONVERT_MODE_CATALYST = "catalyst";
+    // any number of these digits fits in a long
+    private static final int MAX_SAFE_LONG_DIGITS = 18;
+    // thread safe, the parsers created by it recycle their buffers per thread
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
     private static UDF1<String, Row[]> convertJsonStringToKeyValue(final List<String> excludeAttributes) {
+        Set<String> excludeAttributeSet = new HashSet<>(excludeAttributes);
         return (String value) -> {
             try {
-                return getGenericRows(value, excludeAttributes);
+                return getGenericRows(value, excludeAttributeSet);
             } catch (Exception e) {
                 return null;
             }
         };
     }
 
+    private static UDF2<String, String, Row[]> convertJsonStringToKeyValue(final List<String> excludeAttributes,
+                                                                           final Broadcast<HashMap<String, HashMap<String, ValueType>>> keyTypes) {
+        Set<String> excludeAttributeSet = new HashSet<>(excludeAttributes);
+        return (String appId, String value) -> {
+            try {
+                Map<String, ValueType> appKeyTypes = appId == null ? null : keyTypes.value().get(appId);
+                return getGenericRows(value, excludeAttributeSet, appKeyTypes == null ? Collections.emptyMap() : appKeyTypes);
+            } catch (Exception e) {
+                return null;
+            }
+        };
+    }
+
+    @NotNull
+    static GenericRow[] getGenericRows(final String value, final Set<String> excludeAttributes) throws IOException {
+        return getGenericRows(value, excludeAttributes, Collections.emptyMap());
+    }
+
+    /**
+     * Streams the attributes of the json object with the same result as reading it as a JsonNode tree:
+     * a duplicated attribute keeps its first position with its last value, and the value text is JsonNode.asText().
+     */
     @NotNull
-    private static GenericRow[] getGenericRows(final String value, final List<String> excludeAttributes) throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        JsonNode jsonNode = objectMapper.readTree(value);
-        List<GenericRow> list = new ArrayList<>();
-        for (Iterator<String> it = jsonNode.fieldNames(); it.hasNext();) {
-            String attrName = it.next();
+    static GenericRow[] getGenericRows(final String value, final Set<String> excludeAttributes,
+                                       final Map<String, ValueType> keyTypes) throws IOException {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        try (JsonParser parser = JSON_FACTORY.createParser(value)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String attrName = parser.getCurrentName();
+                    parser.nextToken();
+                    attributes.put(attrName, getValueText(parser));
+                }
+            }
+        }
+        GenericRow[] rows = new GenericRow[attributes.size()];
+        int i = 0;
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            String attrName = attribute.getKey();
             if (excludeAttributes.contains(attrName)) {
                 continue;
             }
-            JsonNode attrValueNode = jsonNode.get(attrName);
-            String attrValue = attrValueNode.asText();
-
-            ValueTypeResult result = getValueTypeResult(attrName, attrValue);
+            ValueTypeResult result = getValueTypeResult(attrName, attribute.getValue(), keyTypes.get(attrName));
 
-            list.add(new GenericRow(
+            rows[i++] = new GenericRow(
                     new Object[]{
                             attrName,
                             new GenericRow(
@@ -83,10 +135,36 @@ public class KvConverter {
                                             result.stringValue,
                                     })
                     }
-            ));
+            );
         }
-        return list.toArray(new GenericRow[]{});
+        return i == rows.length ? rows : Arrays.copyOf(rows, i);
+    }
 
+    private static String getValueText(final JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                if (parser.getNumberType() == JsonParser.NumberType.INT) {
+                    return String.valueOf(parser.getIntValue());
+                }
+                if (parser.getNumberType() == JsonParser.NumberType.LONG) {
+                    return String.valueOf(parser.getLongValue());
+                }
+                return parser.getBigIntegerValue().toString();
+            case VALUE_NUMBER_FLOAT:
+                return String.valueOf(parser.getDoubleValue());
+            case VALUE_TRUE:
+                return "true";
+            case VALUE_FALSE:
+                return "false";
+            case VALUE_NULL:
+                return "null";
+            default:
+                // the text of an object or array node is empty
+                parser.skipChildren();
+                return "";
+        }
     }
 
     @NotNull
@@ -95,13 +173,16 @@ public class KvConverter {
         Long longValue = null;
         String stringValue = null;
 
+        int dot = attrValue.indexOf('.');
         if (Objects.equals("price", attrName)) {
             doubleValue = Double.parseDouble(attrValue);
         } else if (attrName.endsWith("_id")) {
             stringValue = attrValue;
-        } else if (attrValue.matches("^\\d+$")) {
+        } else if (!attrValue.isEmpty() && isDigits(attrValue, 0, attrValue.length())) {
+            // ^\d+$
             longValue = Long.parseLong(attrValue);
-        } else if (attrValue.matches("^\\d+\\.(\\d+)?$")) {
+        } else if (dot > 0 && isDigits(attrValue, 0, dot) && isDigits(attrValue, dot + 1, attrValue.length())) {
+            // ^\d+\.(\d+)?$
             doubleValue = Double.parseDouble(attrValue);
         } else {
             stringValue = attrValue;
@@ -109,6 +190,91 @@ public class KvConverter {
         return new ValueTypeResult(doubleValue, longValue, stringValue);
     }
 
+    /**
+     * Converts the value to the known type of the key when it fits, a value which does not fit and the value of an unknown
+     * key are detected by getValueTypeResult(attrName, attrValue).
+     */
+    @NotNull
+    static ValueTypeResult getValueTypeResult(final String attrName, final String attrValue, final ValueType knownType) {
+        if (knownType == null || Objects.equals("price", attrName) || attrName.endsWith("_id")) {
+            return getValueTypeResult(attrName, attrValue);
+        }
+        int length = attrValue.length();
+        switch (knownType) {
+            case STRING:
+                return new ValueTypeResult(null, null, attrValue);
+            case INT:
+                if (length > 0 && length <= MAX_SAFE_LONG_DIGITS && isDigits(attrValue, 0, length)) {
+                    return new ValueTypeResult(null, Long.parseLong(attrValue), null);
+                }
+                break;
+            case DOUBLE:
+                int dot = attrValue.indexOf('.');
+                // ^\d+(\.(\d+)?)?$
+                boolean isNumber = dot < 0 ? length > 0 && isDigits(attrValue, 0, length)
+                        : dot > 0 && isDigits(attrValue, 0, dot) && isDigits(attrValue, dot + 1, length);
+                if (isNumber) {
+                    return new ValueTypeResult(Double.parseDouble(attrValue), null, null);
+                }
+                break;
+            default:
+                break;
+        }
+        return getValueTypeResult(attrName, attrValue);
+    }
+
+    /**
+     * The same conversion as the udf by built-in expressions only, so it runs in the whole stage codegen. A duplicated key
+     * keeps its first position with its last value, the same as the udf. It differs from the udf on unusual values:
+     * a nested object or array value is its json text instead of '', an invalid price or a too large long is null
+     * instead of the whole array, and a json not object is null instead of an empty array.
+     */
+    static String getKeyValueExpr(final String mapColName, final List<String> excludeAttributes) {
+        String entries = String.format("map_entries(`%s`)", mapColName);
+        // from_json keeps all the entries of a duplicated key, only the rows with a duplicated key are deduplicated
+        String keys = String.format("transform(%s, x -> x.key)", entries);
+        entries = String.format("CASE WHEN size(array_distinct(%1$s)) = size(%2$s) THEN %2$s "
+                + "ELSE transform(filter(%2$s, (e, i) -> array_position(%1$s, e.key) = i + 1), "
+                + "e -> element_at(filter(%2$s, x -> x.key = e.key), -1)) END", keys, entries);
+        if (!excludeAttributes.isEmpty()) {
+            String excluded = excludeAttributes.stream()
+                    .map(a -> "'" + a.replace("'", "\\'") + "'")
+                    .collect(Collectors.joining(", "));
+            entries = String.format("filter(%s, e -> NOT array_contains(array(%s), e.key))", entries, excluded);
+        }
+        // same as JsonNode.asText() of a null value
+        String value = "coalesce(e.value, 'null')";
+        String isPrice = "e.key = 'price'";
+        String isId = "right(e.key, 3) = '_id'";
+        // ^\\d+$ and ^\\d+\\.(\\d+)?$ without regex
+        String isLong = String.format("length(%s) > 0 AND translate(%s, '0123456789', '') = ''", value, value);
+        String isDouble = String.format("instr(%s, '.') > 1 AND translate(%s, '0123456789', '') = '.'", value, value);
+        return String.format("transform(%s, e -> named_struct("
+                        + "'%s', e.key, "
+                        + "'%s', named_struct("
+                        + "'%s', CASE WHEN %s THEN cast(%s AS double) WHEN %s THEN null WHEN %s THEN cast(%s AS double) END, "
+                        + "'%s', cast(null AS float), "
+                        + "'%s', CASE WHEN %s OR %s THEN null WHEN %s THEN cast(%s AS bigint) END, "
+                        + "'%s', CASE WHEN %s THEN null WHEN %s THEN %s WHEN %s OR %s THEN null ELSE %s END)))",
+                entries,
+                KEY,
+                VALUE,
+                DOUBLE_VALUE, isPrice, value, isId, isDouble, value,
+                FLOAT_VALUE,
+                INT_VALUE, isPrice, isId, isLong, value,
+                STRING_VALUE, isPrice, isId, value, isLong, isDouble, value);
+    }
+
+    private static boolean isDigits(final String value, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static class ValueTypeResult {
         public final Double doubleValue;
         public final Long longValue;
@@ -131,7 +297,42 @@ public class KvConverter {
     }
 
     public Dataset<Row> transform(final Dataset<Row> dataset, final Column fromCol, final String toColName, final List<String> excludeAttributes) {
+        ArrayType keyValueType = getKeyValueType();
+        String convertMode = ContextUtil.getKvConvertMode();
+        log.info("kv convert mode: " + convertMode + ", column: " + toColName);
+        Dataset<Row> convertedKeyValueDataset;
+        if (KV_CONVERT_MODE_CATALYST.equalsIgnoreCase(convertMode)) {
+            String mapColName = toColName + "_map";
+            convertedKeyValueDataset = dataset
+                    .withColumn(mapColName, from_json(fromCol, DataTypes.createMapType(DataTypes.StringType, DataTypes.StringType)))
+                    .withColumn(toColName, expr(getKeyValueExpr(mapColName, excludeAttributes)).cast(keyValueType))
+                    .drop(mapColName);
+        } else {
+            UserDefinedFunction convertStringToKeyValueUdf = udf(convertJsonStringToKeyValue(excludeAttributes), keyValueType);
+            convertedKeyValueDataset = dataset.withColumn(toColName,
+                    convertStringToKeyValueUdf.apply(fromCol));
+        }
+        return writeDebugLocal(convertedKeyValueDataset, toColName);
+    }
 
+    /**
+     * Converts by the udf with the value types of the keys per app_id learned by KvTypeDictionary.
+     * The catalyst mode does not use the types.
+     */
+    public Dataset<Row> transform(final Dataset<Row> dataset, final Column fromCol, final Column appIdCol, final String toColName,
+                                  final List<String> excludeAttributes, final HashMap<String, HashMap<String, ValueType>> keyTypes) {
+        if (keyTypes.isEmpty() || KV_CONVERT_MODE_CATALYST.equalsIgnoreCase(ContextUtil.getKvConvertMode())) {
+            return transform(dataset, fromCol, toColName, excludeAttributes);
+        }
+        log.info("kv convert by type dictionary, apps: " + keyTypes.size() + ", column: " + toColName);
+        Broadcast<HashMap<String, HashMap<String, ValueType>>> keyTypesBroadcast =
+                JavaSparkContext.fromSparkContext(dataset.sparkSession().sparkContext()).broadcast(keyTypes);
+        UserDefinedFunction convertStringToKeyValueUdf = udf(convertJsonStringToKeyValue(excludeAttributes, keyTypesBroadcast),
+                getKeyValueType());
+        return writeDebugLocal(dataset.withColumn(toColName, convertStringToKeyValueUdf.apply(appIdCol, fromCol)), toColName);
+    }
+
+    private static ArrayType getKeyValueType() {
         StructType valueType = DataTypes.createStructType(new StructField[]{
                 DataTypes.createStructField(DOUBLE_VALUE, DataTypes.DoubleType, true),
                 DataTypes.createStructField(FLOAT_VALUE, DataTypes.FloatType, true),
@@ -139,16 +340,16 @@ public class KvConverter {
                 DataTypes.createStructField(STRING_VALUE, DataTypes.StringType, true),
         });
 
-        UserDefinedFunction convertStringToKeyValueUdf = udf(convertJsonStringToKeyValue(excludeAttributes), DataTypes.createArrayType(
+        return DataTypes.createArrayType(
                 DataTypes.createStructType(
                         new StructField[]{
                                 DataTypes.createStructField(KEY, DataTypes.StringType, true),
                                 DataTypes.createStructField(VALUE, valueType, true),
                         }
-                )));
-        Dataset<Row> convertedKeyValueDataset = dataset.withColumn(toColName,
-                convertStringToKeyValueUdf.apply(fromCol));
+                ));
+    }
 
+    private static Dataset<Row> writeDebugLocal(final Dataset<Row> convertedKeyValueDataset, final String toColName) {
         boolean debugLocal = Boolean.parseBoolean(System.getProperty(DEBUG_LOCAL_PROP));
         if (debugLocal) {
             convertedKeyValueDataset.write().mode(SaveMode.Overwrite).json(DEBUG_LOCAL_PATH + "/KvConverter-" + toColName + "/");
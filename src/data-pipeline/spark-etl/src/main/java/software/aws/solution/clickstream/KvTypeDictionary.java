@@ -0,0 +1,183 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import software.aws.solution.clickstream.exception.ExecuteTransformerException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.explode;
+import static org.apache.spark.sql.functions.max;
+import static org.apache.spark.sql.functions.when;
+import static software.aws.solution.clickstream.Transformer.DOUBLE_VALUE;
+import static software.aws.solution.clickstream.Transformer.INT_VALUE;
+import static software.aws.solution.clickstream.Transformer.KEY;
+import static software.aws.solution.clickstream.Transformer.STRING_VALUE;
+import static software.aws.solution.clickstream.Transformer.VALUE;
+import static software.aws.solution.clickstream.TransformerV2.APP_ID;
+
+/**
+ * The value type of the event param keys per app_id, learned from a sample of the input of each run before it is
+ * converted, and saved as parquet under the warehouse dir. A known key is converted to its type when its value fits
+ * the type, which skips the value type detection and keeps the type of the key the same across the events. The type
+ * of a key only widens, from int to double to string. A value which does not fit the type, e.g. a value of a kind
+ * the sample did not see, is still detected as before, so its key can have two types within the run until a later
+ * run learns the wider type. The keys of an app are capped, the new keys of an app at the cap are not learned and
+ * are detected as before, which keeps the dictionary and its lookup small for the apps with unbounded keys.
+ */
+@Slf4j
+public class KvTypeDictionary {
+    public static final String DICTIONARY_DIR = "etl_kv_type_dictionary";
+    static final String VALUE_TYPE = "value_type";
+    private static final String KEY_VALUE = "key_value";
+    private static final String KEY_VALUES = "key_values";
+    private static final String JSON = "json";
+    private static final String TMP_SUFFIX = "_tmp";
+
+    /**
+     * In the widening order.
+     */
+    public enum ValueType {
+        INT, DOUBLE, STRING
+    }
+
+    private final SparkSession spark;
+    private final String dictionaryPath;
+
+    public KvTypeDictionary(final SparkSession spark, final String dictionaryPath) {
+        this.spark = spark;
+        this.dictionaryPath = dictionaryPath;
+    }
+
+    public static StructType getDictionarySchema() {
+        return DataTypes.createStructType(new StructField[]{
+                DataTypes.createStructField(APP_ID, DataTypes.StringType, false),
+                DataTypes.createStructField(KEY, DataTypes.StringType, false),
+                DataTypes.createStructField(VALUE_TYPE, DataTypes.StringType, false),
+        });
+    }
+
+    /**
+     * @return the value type of the keys per app_id
+     */
+    public HashMap<String, HashMap<String, ValueType>> load() {
+        HashMap<String, HashMap<String, ValueType>> keyTypes = new HashMap<>();
+        Path path = new Path(dictionaryPath);
+        try {
+            if (!path.getFileSystem(spark.sparkContext().hadoopConfiguration()).exists(path)) {
+                return keyTypes;
+            }
+        } catch (IOException e) {
+            throw new ExecuteTransformerException(e);
+        }
+        for (Row row : spark.read().schema(getDictionarySchema()).parquet(dictionaryPath).collectAsList()) {
+            keyTypes.computeIfAbsent(row.getString(0), k -> new HashMap<>())
+                    .put(row.getString(1), ValueType.valueOf(row.getString(2)));
+        }
+        return keyTypes;
+    }
+
+    /**
+     * Learns the value types of a sample of the json objects, and saves them widened with the known types.
+     * Only the sample is converted, the sample is taken before the conversion.
+     *
+     * @param dataset the input dataset
+     * @param appIdCol the app_id of the rows
+     * @param jsonCol the json object converted by KvConverter
+     * @param excludeAttributes the attributes KvConverter excludes
+     * @param sampleFraction the fraction of the rows to learn
+     * @param maxKeysPerApp the max keys of an app in the dictionary, the known keys are still widened at the cap
+     * @return the value type of the keys per app_id, widened with the learned types
+     */
+    public HashMap<String, HashMap<String, ValueType>> learn(final Dataset<Row> dataset, final Column appIdCol, final Column jsonCol,
+                                                             final List<String> excludeAttributes, final double sampleFraction,
+                                                             final int maxKeysPerApp) {
+        Dataset<Row> jsonDataset = dataset.select(appIdCol.alias(APP_ID), jsonCol.alias(JSON));
+        Dataset<Row> sampleDataset = sampleFraction < 1.0 ? jsonDataset.sample(sampleFraction) : jsonDataset;
+        Column keyValue = col(KEY_VALUE).getField(VALUE);
+        List<Row> learnedTypes = new KvConverter().transform(sampleDataset, col(JSON), KEY_VALUES, excludeAttributes)
+                .select(col(APP_ID), explode(col(KEY_VALUES)).alias(KEY_VALUE))
+                .select(col(APP_ID),
+                        col(KEY_VALUE).getField(KEY).alias(KEY),
+                        when(keyValue.getField(STRING_VALUE).isNotNull(), ValueType.STRING.ordinal())
+                                .when(keyValue.getField(DOUBLE_VALUE).isNotNull(), ValueType.DOUBLE.ordinal())
+                                .when(keyValue.getField(INT_VALUE).isNotNull(), ValueType.INT.ordinal())
+                                .alias(VALUE_TYPE))
+                .filter(col(APP_ID).isNotNull().and(col(KEY).isNotNull()).and(col(VALUE_TYPE).isNotNull()))
+                .groupBy(APP_ID, KEY)
+                .agg(max(VALUE_TYPE).alias(VALUE_TYPE))
+                .collectAsList();
+
+        HashMap<String, HashMap<String, ValueType>> keyTypes = load();
+        int changedKeys = 0;
+        int skippedKeys = 0;
+        for (Row row : learnedTypes) {
+            ValueType learnedType = ValueType.values()[row.getInt(2)];
+            Map<String, ValueType> appKeyTypes = keyTypes.computeIfAbsent(row.getString(0), k -> new HashMap<>());
+            ValueType knownType = appKeyTypes.get(row.getString(1));
+            if (knownType == null && appKeyTypes.size() >= maxKeysPerApp) {
+                skippedKeys++;
+            } else if (knownType == null || knownType.compareTo(learnedType) < 0) {
+                appKeyTypes.put(row.getString(1), learnedType);
+                changedKeys++;
+            }
+        }
+        log.info("kv type dictionary learned keys: " + learnedTypes.size() + ", changed keys: " + changedKeys
+                + ", keys over the cap of " + maxKeysPerApp + " per app: " + skippedKeys + ", path: " + dictionaryPath);
+        if (changedKeys > 0) {
+            save(keyTypes);
+        }
+        return keyTypes;
+    }
+
+    private void save(final Map<String, HashMap<String, ValueType>> keyTypes) {
+        List<Row> rows = new ArrayList<>();
+        keyTypes.forEach((appId, appKeyTypes) -> appKeyTypes.forEach((key, valueType) ->
+                rows.add(RowFactory.create(appId, key, valueType.name()))));
+        Path path = new Path(dictionaryPath);
+        // the readers see either the old or the new dictionary, or no dictionary, which converts as before
+        Path tmpPath = new Path(dictionaryPath + TMP_SUFFIX);
+        spark.createDataFrame(rows, getDictionarySchema())
+                .coalesce(1)
+                .write()
+                .mode(SaveMode.Overwrite)
+                .parquet(tmpPath.toString());
+        try {
+            FileSystem fs = path.getFileSystem(spark.sparkContext().hadoopConfiguration());
+            fs.delete(path, true);
+            if (!fs.rename(tmpPath, path)) {
+                throw new IOException("Failed to rename " + tmpPath + " to " + path);
+            }
+        } catch (IOException e) {
+            throw new ExecuteTransformerException(e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Parquet writer settings per output table, e.g.
+ * <pre>
+ * -Doutput.parquet.default.codec=snappy
+ * -Doutput.parquet.event_parameter.codec=zstd
+ * -Doutput.parquet.event_parameter.level=9
+ * -Doutput.parquet.event.block.size=268435456
+ * -Doutput.parquet.user.dictionary=false
+ * </pre>
+ * The settings of a table are looked up by the table name, then by the name without the _full_v1/_incremental_v1
+ * suffix, then in 'default'.
+ */
+public class ParquetWriteConfig {
+    public static final String PROP_PREFIX = "output.parquet.";
+    public static final String DEFAULT_TABLE = "default";
+    public static final String CODEC = "codec";
+    public static final String LEVEL = "level";
+    public static final String BLOCK_SIZE = "block.size";
+    public static final String PAGE_SIZE = "page.size";
+    public static final String DICTIONARY = "dictionary";
+
+    private static final String DEFAULT_CODEC = "snappy";
+    private static final String[] TABLE_SUFFIXES = {"_full_v1", "_incremental_v1"};
+    private static final Map<String, String> WRITER_OPTION_KEYS = new HashMap<>();
+
+    static {
+        WRITER_OPTION_KEYS.put(CODEC, "compression");
+        WRITER_OPTION_KEYS.put(LEVEL, "parquet.compression.codec.zstd.level");
+        WRITER_OPTION_KEYS.put(BLOCK_SIZE, "parquet.block.size");
+        WRITER_OPTION_KEYS.put(PAGE_SIZE, "parquet.page.size");
+        WRITER_OPTION_KEYS.put(DICTIONARY, "parquet.enable.dictionary");
+    }
+
+    private final Map<String, Map<String, String>> tableSettings;
+
+    public ParquetWriteConfig(final Map<String, Map<String, String>> tableSettings) {
+        this.tableSettings = tableSettings;
+    }
+
+    public static ParquetWriteConfig fromProperties(final Properties properties) {
+        Map<String, Map<String, String>> tableSettings = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.startsWith(PROP_PREFIX)) {
+                continue;
+            }
+            String tableAndKey = name.substring(PROP_PREFIX.length());
+            int dot = tableAndKey.indexOf('.');
+            if (dot <= 0) {
+                continue;
+            }
+            String key = tableAndKey.substring(dot + 1);
+            if (!WRITER_OPTION_KEYS.containsKey(key)) {
+                throw new IllegalArgumentException("Unknown parquet setting: " + name);
+            }
+            tableSettings.computeIfAbsent(tableAndKey.substring(0, dot), t -> new HashMap<>())
+                    .put(key, properties.getProperty(name));
+        }
+        return new ParquetWriteConfig(tableSettings);
+    }
+
+    public static ParquetWriteConfig fromSystemProperties() {
+        return fromProperties(System.getProperties());
+    }
+
+    /**
+     * @return the parquet write options of the table, with snappy when no codec is set
+     */
+    public Map<String, String> getWriteOptions(final String tableName) {
+        Map<String, String> settings = new HashMap<>();
+        settings.put(CODEC, DEFAULT_CODEC);
+        settings.putAll(tableSettings.getOrDefault(DEFAULT_TABLE, new HashMap<>()));
+        settings.putAll(tableSettings.getOrDefault(getBaseTableName(tableName), new HashMap<>()));
+        settings.putAll(tableSettings.getOrDefault(tableName, new HashMap<>()));
+
+        Map<String, String> options = new HashMap<>();
+        settings.forEach((key, value) -> options.put(WRITER_OPTION_KEYS.get(key), value));
+        return options;
+    }
+
+    private static String getBaseTableName(final String tableName) {
+        for (String suffix : TABLE_SUFFIXES) {
+            if (tableName.endsWith(suffix)) {
+                return tableName.substring(0, tableName.length() - suffix.length());
+            }
+        }
+        return tableName;
+    }
+
+    @Override
+    public String toString() {
+        return "ParquetWriteConfig" + tableSettings;
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import software.aws.solution.clickstream.exception.ExtractDataException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.max;
+
+/**
+ * Records the source files processed by the ETL jobs, so that the next job only lists the source prefixes
+ * after the last checkpoint (the max modification time in the manifest) and skips the files already processed.
+ * The manifest is saved as parquet under the warehouse dir, partitioned by the day of the file modification time.
+ * The jobs only read the days from the checkpoint window, so each commit compacts the older days to one file and
+ * deletes the days older than source.manifest.keep.days.
+ */
+@Slf4j
+public class SourceManifest {
+    public static final String MANIFEST_DIR = "etl_source_manifest";
+    static final String PATH = "path";
+    static final String MODIFICATION_TIME = "modificationTime";
+    static final String LENGTH = "length";
+    private static final String MANIFEST_DAY = "manifest_day";
+    private static final String MANIFEST_DAY_PREFIX = MANIFEST_DAY + "=";
+    // files are visible to the listing in any order within this window, look back from the checkpoint for them
+    private static final long LATE_FILE_WINDOW_MILLI_SEC = 3600 * 1000L;
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneId.of("UTC"));
+
+    private final SparkSession spark;
+    private final String manifestPath;
+
+    public SourceManifest(final SparkSession spark, final String manifestPath) {
+        this.spark = spark;
+        this.manifestPath = manifestPath;
+    }
+
+    public static StructType getManifestSchema() {
+        return DataTypes.createStructType(new StructField[]{
+                DataTypes.createStructField(PATH, DataTypes.StringType, false),
+                DataTypes.createStructField(MODIFICATION_TIME, DataTypes.LongType, false),
+                DataTypes.createStructField(LENGTH, DataTypes.LongType, false),
+                DataTypes.createStructField(Transformer.JOB_NAME_COL, DataTypes.StringType, true),
+                DataTypes.createStructField(MANIFEST_DAY, DataTypes.StringType, false),
+        });
+    }
+
+    /**
+     * @return the max modification time of the processed files, empty when no file is recorded yet
+     */
+    public Optional<Long> getCheckpoint() {
+        Path path = new Path(manifestPath);
+        try {
+            FileSystem fs = path.getFileSystem(getHadoopConf());
+            if (!fs.exists(path)) {
+                return Optional.empty();
+            }
+            // only the latest day partition is read
+            Optional<String> latestDay = Arrays.stream(fs.listStatus(path))
+                    .filter(FileStatus::isDirectory)
+                    .map(s -> s.getPath().getName())
+                    .filter(name -> name.startsWith(MANIFEST_DAY_PREFIX))
+                    .max(Comparator.naturalOrder());
+            if (!latestDay.isPresent()) {
+                return Optional.empty();
+            }
+            Row row = spark.read().schema(getManifestSchema()).parquet(manifestPath)
+                    .filter(col(MANIFEST_DAY).equalTo(latestDay.get().substring(MANIFEST_DAY_PREFIX.length())))
+                    .agg(max(col(MODIFICATION_TIME)))
+                    .first();
+            return row.isNullAt(0) ? Optional.empty() : Optional.of(row.getLong(0));
+        } catch (IOException e) {
+            throw new ExtractDataException(e);
+        }
+    }
+
+    /**
+     * Lists the source files modified in (startTimestamp, endTimestamp] which are not in the manifest.
+     * Only the hour prefixes from the checkpoint to endTimestamp are listed.
+     */
+    public List<FileStatus> listNewFiles(final String sourceDir, final long startTimestamp, final long endTimestamp) {
+        Optional<Long> checkpoint = getCheckpoint();
+        long listFrom = checkpoint.map(c -> Math.max(startTimestamp, c - LATE_FILE_WINDOW_MILLI_SEC)).orElse(startTimestamp);
+        log.info("manifest checkpoint: " + checkpoint.orElse(null) + ", list from: " + listFrom);
+
+        Set<String> processedFiles = getProcessedFiles(listFrom);
+        List<String> prefixes = ETLRunner.getSourcePrefixPaths(sourceDir, listFrom, endTimestamp);
+        // same range as modifiedAfter/modifiedBefore, which are in seconds
+        long modifiedAfter = startTimestamp / 1000L * 1000L;
+        long modifiedBefore = endTimestamp + 1000L;
+        List<FileStatus> newFiles = ETLRunner.mapPathsInParallel(getHadoopConf(), prefixes, SourceManifest::listFiles)
+                .stream()
+                .flatMap(List::stream)
+                .filter(s -> s.getModificationTime() > modifiedAfter && s.getModificationTime() < modifiedBefore)
+                .filter(s -> !processedFiles.contains(s.getPath().toString()))
+                .sorted(Comparator.comparing(FileStatus::getModificationTime))
+                .collect(Collectors.toList());
+        log.info("manifest listed prefixes: " + prefixes.size() + ", processed files: " + processedFiles.size()
+                + ", new files: " + newFiles.size());
+        return newFiles;
+    }
+
+    public void commit(final List<FileStatus> files, final String jobName) {
+        if (files.isEmpty()) {
+            return;
+        }
+        List<Row> rows = files.stream().map(s -> RowFactory.create(
+                s.getPath().toString(),
+                s.getModificationTime(),
+                s.getLen(),
+                jobName,
+                DAY_FORMATTER.format(Instant.ofEpochMilli(s.getModificationTime()))
+        )).collect(Collectors.toList());
+        spark.createDataFrame(rows, getManifestSchema())
+                .coalesce(1)
+                .write()
+                .mode(SaveMode.Append)
+                .partitionBy(MANIFEST_DAY)
+                .parquet(manifestPath);
+        log.info("manifest committed files: " + rows.size() + ", path: " + manifestPath);
+        files.stream().mapToLong(FileStatus::getModificationTime).max()
+                .ifPresent(checkpoint -> cleanClosedDays(checkpoint, ContextUtil.getSourceManifestKeepDays()));
+    }
+
+    /**
+     * The new files are modified after the checkpoint window, so a day before it is closed: no commit appends to it
+     * and no job reads it again. A closed day is deleted when it is older than keepDays, or compacted to one file.
+     */
+    void cleanClosedDays(final long checkpoint, final int keepDays) {
+        String openDay = DAY_FORMATTER.format(Instant.ofEpochMilli(checkpoint - LATE_FILE_WINDOW_MILLI_SEC));
+        String expireDay = DAY_FORMATTER.format(Instant.ofEpochMilli(checkpoint).minus(Duration.ofDays(keepDays)));
+        Path path = new Path(manifestPath);
+        try {
+            FileSystem fs = path.getFileSystem(getHadoopConf());
+            for (FileStatus dayDir : fs.listStatus(path)) {
+                String name = dayDir.getPath().getName();
+                if (!dayDir.isDirectory() || !name.startsWith(MANIFEST_DAY_PREFIX)) {
+                    continue;
+                }
+                String day = name.substring(MANIFEST_DAY_PREFIX.length());
+                if (day.compareTo(openDay) >= 0) {
+                    continue;
+                }
+                if (keepDays > 0 && day.compareTo(expireDay) < 0) {
+                    fs.delete(dayDir.getPath(), true);
+                    log.info("manifest day deleted: " + day);
+                } else if (fs.listStatus(dayDir.getPath(), p -> !p.getName().startsWith("_") && !p.getName().startsWith(".")).length > 1) {
+                    compactDay(fs, dayDir.getPath());
+                    log.info("manifest day compacted: " + day);
+                }
+            }
+        } catch (IOException e) {
+            throw new ExtractDataException(e);
+        }
+    }
+
+    private void compactDay(final FileSystem fs, final Path dayPath) throws IOException {
+        // out of the manifest dir, so that it is not read as a partition
+        Path tmpPath = new Path(manifestPath + "_compacting", dayPath.getName());
+        spark.read().parquet(dayPath.toString())
+                .coalesce(1)
+                .write()
+                .mode(SaveMode.Overwrite)
+                .parquet(tmpPath.toString());
+        fs.delete(dayPath, true);
+        fs.rename(tmpPath, dayPath);
+        fs.delete(tmpPath.getParent(), true);
+    }
+
+    private Set<String> getProcessedFiles(final long fromTimestamp) {
+        Path path = new Path(manifestPath);
+        try {
+            if (!path.getFileSystem(getHadoopConf()).exists(path)) {
+                return new HashSet<>();
+            }
+        } catch (IOException e) {
+            throw new ExtractDataException(e);
+        }
+        String fromDay = DAY_FORMATTER.format(Instant.ofEpochMilli(fromTimestamp));
+        return spark.read().schema(getManifestSchema()).parquet(manifestPath)
+                .filter(col(MANIFEST_DAY).geq(fromDay).and(col(MODIFICATION_TIME).geq(fromTimestamp)))
+                .select(PATH)
+                .collectAsList()
+                .stream()
+                .map(r -> r.getString(0))
+                .collect(Collectors.toSet());
+    }
+
+    private static List<FileStatus> listFiles(final FileSystem fs, final Path prefix) throws IOException {
+        List<FileStatus> files = new ArrayList<>();
+        if (!fs.exists(prefix)) {
+            return files;
+        }
+        RemoteIterator<LocatedFileStatus> it = fs.listFiles(prefix, true);
+        while (it.hasNext()) {
+            LocatedFileStatus status = it.next();
+            String name = status.getPath().getName();
+            // same as spark, hidden and metadata files are not data
+            if (status.isFile() && !name.startsWith("_") && !name.startsWith(".")) {
+                files.add(status);
+            }
+        }
+        return files;
+    }
+
+    private Configuration getHadoopConf() {
+        return spark.sparkContext().hadoopConfiguration();
+    }
+}
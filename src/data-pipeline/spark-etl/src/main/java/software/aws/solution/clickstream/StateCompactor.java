@@ -0,0 +1,247 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import software.aws.solution.clickstream.exception.ExecuteTransformerException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static software.aws.solution.clickstream.TransformerV2.UPDATE_DATE;
+
+/**
+ * Rewrites the small files of the update_date/app_id partitions of a state table into right-sized files.
+ * Each run appends files to the partitions of the current update_date, so only the latest update_date partitions
+ * are checked. Only the files under targetFileSizeBytes are rewritten, a partition is compacted when it has at least
+ * minFileCount of them, or when they have at least targetFileSizeBytes in total.
+ *
+ * <p>The compacted files are written to a hidden dir of the partition, then a manifest of the swap is saved under
+ * the _compaction_manifests dir of the table, then the compacted files are moved into the partition. The replaced
+ * files are kept until recover deletes them in a later run, which runs before the state tables are read by that run,
+ * so a reader which listed the partition before the swap still finds its files. Until then the partition has the
+ * rows of both the replaced and the compacted files, the readers of the state tables re-aggregate the versions of each
+ * key, so they merge the duplicated rows. A reader which runs across the recover of a later run can still fail on a
+ * deleted file.
+ *
+ * <p>A swap which fails, e.g. by a crash or a partly done rename on S3, is finished from its manifest by recover too,
+ * and a compaction which fails before its manifest is saved leaves only the hidden dir, which the next compaction of
+ * the partition deletes.
+ */
+@Slf4j
+public class StateCompactor {
+    private static final String UPDATE_DATE_PREFIX = UPDATE_DATE + "=";
+    private static final String COMPACTING_DIR_PREFIX = "_compacting_";
+    private static final String MANIFEST_DIR = "_compaction_manifests";
+    private static final String TMP_SUFFIX = "_tmp";
+    private static final int RECENT_UPDATE_DATES = 2;
+
+    private final SparkSession spark;
+    private final int minFileCount;
+    private final long targetFileSizeBytes;
+
+    public StateCompactor(final SparkSession spark, final int minFileCount, final long targetFileSizeBytes) {
+        this.spark = spark;
+        this.minFileCount = minFileCount;
+        this.targetFileSizeBytes = targetFileSizeBytes;
+    }
+
+    /**
+     * @return the number of compacted partitions
+     */
+    public int compact(final String tablePath, final Map<String, String> writeOptions) {
+        Path path = new Path(tablePath);
+        int compactedPartitions = 0;
+        try {
+            FileSystem fs = path.getFileSystem(spark.sparkContext().hadoopConfiguration());
+            if (!fs.exists(path)) {
+                return 0;
+            }
+            recover(fs, path);
+            List<Path> updateDateDirs = Arrays.stream(fs.listStatus(path))
+                    .filter(s -> s.isDirectory() && s.getPath().getName().startsWith(UPDATE_DATE_PREFIX))
+                    .map(FileStatus::getPath)
+                    .sorted(Comparator.comparing(Path::getName).reversed())
+                    .limit(RECENT_UPDATE_DATES)
+                    .collect(Collectors.toList());
+            for (Path updateDateDir : updateDateDirs) {
+                for (FileStatus partitionDir : fs.listStatus(updateDateDir)) {
+                    if (partitionDir.isDirectory() && compactPartition(fs, path, partitionDir.getPath(), writeOptions)) {
+                        compactedPartitions++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new ExecuteTransformerException(e);
+        }
+        log.info("compacted partitions: " + compactedPartitions + ", path: " + tablePath);
+        return compactedPartitions;
+    }
+
+    /**
+     * Finishes the swaps of the earlier compactions: moves in the compacted files of a failed swap, and deletes the
+     * replaced files.
+     *
+     * @return the number of finished swaps
+     */
+    public int recover(final String tablePath) {
+        Path path = new Path(tablePath);
+        try {
+            return recover(path.getFileSystem(spark.sparkContext().hadoopConfiguration()), path);
+        } catch (IOException e) {
+            throw new ExecuteTransformerException(e);
+        }
+    }
+
+    private int recover(final FileSystem fs, final Path tablePath) throws IOException {
+        Path manifestDir = new Path(tablePath, MANIFEST_DIR);
+        if (!fs.exists(manifestDir)) {
+            return 0;
+        }
+        int finishedSwaps = 0;
+        for (FileStatus manifest : fs.listStatus(manifestDir)) {
+            if (manifest.getPath().getName().endsWith(TMP_SUFFIX)) {
+                // not saved, its compaction has not started the swap
+                fs.delete(manifest.getPath(), false);
+            } else {
+                log.info("recover compaction: " + manifest.getPath());
+                finishSwap(fs, manifest.getPath());
+                finishedSwaps++;
+            }
+        }
+        return finishedSwaps;
+    }
+
+    /**
+     * @param smallFiles the files under targetFileSizeBytes of a partition, the right-sized files are never rewritten
+     */
+    boolean needsCompaction(final List<FileStatus> smallFiles) {
+        if (smallFiles.size() <= 1) {
+            return false;
+        }
+        long smallFileBytes = smallFiles.stream().mapToLong(FileStatus::getLen).sum();
+        return smallFiles.size() >= minFileCount || smallFileBytes >= targetFileSizeBytes;
+    }
+
+    private boolean compactPartition(final FileSystem fs, final Path tablePath, final Path partitionDir,
+                                     final Map<String, String> writeOptions) throws IOException {
+        FileStatus[] statuses = fs.listStatus(partitionDir);
+        for (FileStatus status : statuses) {
+            // left by a compaction which failed before its manifest was saved, the swaps with a manifest are recovered
+            if (status.isDirectory() && status.getPath().getName().startsWith(COMPACTING_DIR_PREFIX)) {
+                fs.delete(status.getPath(), true);
+            }
+        }
+        List<FileStatus> files = Arrays.stream(statuses)
+                .filter(s -> s.isFile() && !s.getPath().getName().startsWith("_") && !s.getPath().getName().startsWith("."))
+                .filter(s -> s.getLen() < targetFileSizeBytes)
+                .collect(Collectors.toList());
+        if (!needsCompaction(files)) {
+            return false;
+        }
+        long totalBytes = files.stream().mapToLong(FileStatus::getLen).sum();
+        int numFiles = (int) Math.max(1L, (totalBytes + targetFileSizeBytes - 1) / targetFileSizeBytes);
+        Path compactingDir = new Path(partitionDir, COMPACTING_DIR_PREFIX + System.currentTimeMillis());
+        log.info("compact partition: " + partitionDir + ", small files: " + files.size() + ", bytes: " + totalBytes
+                + ", to files: " + numFiles);
+
+        String[] filePaths = files.stream().map(f -> f.getPath().toString()).toArray(String[]::new);
+        // the dir starting with '_' is hidden from the readers of the table
+        spark.read().option("mergeSchema", "true").parquet(filePaths)
+                .coalesce(numFiles)
+                .write()
+                .options(writeOptions)
+                .mode(SaveMode.ErrorIfExists)
+                .parquet(compactingDir.toString());
+
+        saveManifest(fs, tablePath, partitionDir, compactingDir, files);
+        moveCompactedFiles(fs, partitionDir, compactingDir);
+        return true;
+    }
+
+    /**
+     * The manifest has the partition dir, the compacting dir and the names of the replaced files, one per line.
+     */
+    Path saveManifest(final FileSystem fs, final Path tablePath, final Path partitionDir, final Path compactingDir,
+                      final List<FileStatus> replacedFiles) throws IOException {
+        Path manifestDir = new Path(tablePath, MANIFEST_DIR);
+        String manifestName = partitionDir.getParent().getName() + "_" + partitionDir.getName() + "_" + compactingDir.getName();
+        Path manifest = new Path(manifestDir, manifestName);
+        Path tmpManifest = new Path(manifestDir, manifestName + TMP_SUFFIX);
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(tmpManifest, true), StandardCharsets.UTF_8))) {
+            writer.write(partitionDir.toString());
+            writer.newLine();
+            writer.write(compactingDir.toString());
+            writer.newLine();
+            for (FileStatus file : replacedFiles) {
+                writer.write(file.getPath().getName());
+                writer.newLine();
+            }
+        }
+        if (!fs.rename(tmpManifest, manifest)) {
+            throw new IOException("Failed to rename " + tmpManifest + " to " + manifest);
+        }
+        return manifest;
+    }
+
+    /**
+     * Moves the compacted files into the partition if a failed swap left them, and deletes the replaced files, each
+     * step can be done again after a failure.
+     */
+    private void finishSwap(final FileSystem fs, final Path manifest) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(manifest), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        Path partitionDir = new Path(lines.get(0));
+        moveCompactedFiles(fs, partitionDir, new Path(lines.get(1)));
+        for (String replacedFile : lines.subList(2, lines.size())) {
+            fs.delete(new Path(partitionDir, replacedFile), false);
+        }
+        fs.delete(manifest, false);
+    }
+
+    private static void moveCompactedFiles(final FileSystem fs, final Path partitionDir, final Path compactingDir) throws IOException {
+        if (fs.exists(compactingDir)) {
+            for (FileStatus compactedFile : fs.listStatus(compactingDir)) {
+                String name = compactedFile.getPath().getName();
+                Path target = new Path(partitionDir, name);
+                // the target of a partly done rename is complete, its source is deleted with the compacting dir
+                if (compactedFile.isFile() && !name.startsWith("_") && !name.startsWith(".") && !fs.exists(target)
+                        && !fs.rename(compactedFile.getPath(), target)) {
+                    throw new IOException("Failed to move " + compactedFile.getPath() + " to " + partitionDir);
+                }
+            }
+        }
+        fs.delete(compactingDir, true);
+    }
+}
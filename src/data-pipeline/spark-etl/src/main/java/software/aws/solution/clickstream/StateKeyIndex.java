@@ -0,0 +1,209 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.api.java.UDF2;
+import org.apache.spark.sql.expressions.UserDefinedFunction;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.util.sketch.BloomFilter;
+import org.apache.spark.util.sketch.IncompatibleMergeException;
+import software.aws.solution.clickstream.exception.ExecuteTransformerException;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.udf;
+import static software.aws.solution.clickstream.TransformerV2.APP_ID;
+import static software.aws.solution.clickstream.TransformerV2.USER_PSEUDO_ID;
+
+/**
+ * A bloom filter per app_id of the user_pseudo_ids in a user state table, saved next to the table as
+ * &lt;table path&gt;_key_index/&lt;app_id&gt;.bloom. A user not in the filter of its app is a new user, so its state is
+ * not looked up, and the app_id partitions without any known user of the batch are not read.
+ * The filters get the users of each batch by add, and are rebuilt from the merged state by rebuild.
+ * The users of an app without a filter are all treated as known.
+ */
+@Slf4j
+public class StateKeyIndex {
+    public static final String INDEX_SUFFIX = "_key_index";
+    private static final String FILE_SUFFIX = ".bloom";
+    private static final double FPP = 0.01;
+    private static final long MIN_EXPECTED_KEYS = 100_000L;
+    // room for the users added by the batches before the next rebuild
+    private static final long KEY_GROWTH_FACTOR = 2L;
+
+    private final SparkSession spark;
+    private final String indexPath;
+
+    public StateKeyIndex(final SparkSession spark, final String tablePath) {
+        this.spark = spark;
+        this.indexPath = tablePath + INDEX_SUFFIX;
+    }
+
+    /**
+     * @param appIds the app_ids of keyDataset, only their filters are loaded and broadcast
+     * @return the keys of keyDataset which may be in the state table
+     */
+    public Dataset<Row> filterKnownKeys(final Dataset<Row> keyDataset, final Collection<String> appIds) {
+        HashMap<String, BloomFilter> filters = load(appIds);
+        if (filters.isEmpty()) {
+            return keyDataset;
+        }
+        Broadcast<HashMap<String, BloomFilter>> filtersBroadcast =
+                JavaSparkContext.fromSparkContext(spark.sparkContext()).broadcast(filters);
+        UserDefinedFunction mightContainUdf = udf((UDF2<String, String, Boolean>) (appId, userPseudoId) -> {
+            BloomFilter filter = filtersBroadcast.value().get(appId);
+            return filter == null || filter.mightContainString(userPseudoId);
+        }, DataTypes.BooleanType);
+        return keyDataset.filter(mightContainUdf.apply(col(APP_ID), col(USER_PSEUDO_ID)));
+    }
+
+    /**
+     * Adds the keys to the filters of their apps, the apps without a filter wait for the next rebuild. The keys of
+     * an app are put into a filter of the same size by the executors, and merged into the filter of the app.
+     *
+     * @param appIds the app_ids of keyDataset, only their filters are loaded
+     */
+    public void add(final Dataset<Row> keyDataset, final Collection<String> appIds) {
+        HashMap<String, BloomFilter> filters = load(appIds);
+        for (Map.Entry<String, BloomFilter> appFilter : filters.entrySet()) {
+            String appId = appFilter.getKey();
+            BloomFilter filter = appFilter.getValue();
+            // the same number of hash functions as the filter, which is sized for FPP
+            long expectedKeys = Math.max((long) (filter.bitSize() * Math.log(2) * Math.log(2) / -Math.log(FPP)), 1L);
+            BloomFilter addedFilter = keyDataset.filter(col(APP_ID).equalTo(appId))
+                    .stat()
+                    .bloomFilter(USER_PSEUDO_ID, expectedKeys, filter.bitSize());
+            try {
+                filter.mergeInPlace(addedFilter);
+                save(appId, filter);
+            } catch (IncompatibleMergeException e) {
+                // without a filter all the users of the app are known until the next rebuild
+                log.warn("key index of app " + appId + " is dropped, " + e.getMessage());
+                delete(appId);
+            }
+        }
+        log.info("key index updated apps: " + filters.size() + ", path: " + indexPath);
+    }
+
+    /**
+     * Rebuilds the filters from all the rows of the state table, the users expired from the state are dropped.
+     */
+    public void rebuild(final Dataset<Row> stateDataset) {
+        Map<String, Long> appKeyCounts = new HashMap<>();
+        stateDataset.groupBy(APP_ID).count().collectAsList()
+                .forEach(r -> appKeyCounts.put(r.getString(0), r.getLong(1)));
+        for (Map.Entry<String, Long> appKeyCount : appKeyCounts.entrySet()) {
+            long expectedKeys = Math.max(appKeyCount.getValue() * KEY_GROWTH_FACTOR, MIN_EXPECTED_KEYS);
+            BloomFilter filter = stateDataset.filter(col(APP_ID).equalTo(appKeyCount.getKey()))
+                    .stat()
+                    .bloomFilter(USER_PSEUDO_ID, expectedKeys, FPP);
+            save(appKeyCount.getKey(), filter);
+        }
+        for (String appId : listAppIds()) {
+            if (!appKeyCounts.containsKey(appId)) {
+                delete(appId);
+            }
+        }
+        log.info("key index rebuilt apps: " + appKeyCounts.size() + ", path: " + indexPath);
+    }
+
+    /**
+     * @return the app_ids which have a filter
+     */
+    Set<String> listAppIds() {
+        Set<String> appIds = new HashSet<>();
+        Path path = new Path(indexPath);
+        try {
+            FileSystem fs = path.getFileSystem(spark.sparkContext().hadoopConfiguration());
+            if (!fs.exists(path)) {
+                return appIds;
+            }
+            for (FileStatus status : fs.listStatus(path)) {
+                String name = status.getPath().getName();
+                if (status.isFile() && name.endsWith(FILE_SUFFIX)) {
+                    appIds.add(name.substring(0, name.length() - FILE_SUFFIX.length()));
+                }
+            }
+        } catch (IOException e) {
+            throw new ExecuteTransformerException(e);
+        }
+        return appIds;
+    }
+
+    /**
+     * @return the filters of the app_ids which have one
+     */
+    HashMap<String, BloomFilter> load(final Collection<String> appIds) {
+        HashMap<String, BloomFilter> filters = new HashMap<>();
+        try {
+            FileSystem fs = new Path(indexPath).getFileSystem(spark.sparkContext().hadoopConfiguration());
+            for (String appId : new HashSet<>(appIds)) {
+                Path path = new Path(indexPath, appId + FILE_SUFFIX);
+                if (!fs.exists(path)) {
+                    continue;
+                }
+                try (FSDataInputStream in = fs.open(path)) {
+                    filters.put(appId, BloomFilter.readFrom(in));
+                }
+            }
+        } catch (IOException e) {
+            throw new ExecuteTransformerException(e);
+        }
+        return filters;
+    }
+
+    private void save(final String appId, final BloomFilter filter) {
+        Path path = new Path(indexPath, appId + FILE_SUFFIX);
+        // the readers see either the old or the new filter, or no filter, which prunes nothing
+        Path tmpPath = new Path(indexPath, "_" + appId + FILE_SUFFIX + ".tmp");
+        try {
+            FileSystem fs = path.getFileSystem(spark.sparkContext().hadoopConfiguration());
+            try (FSDataOutputStream out = fs.create(tmpPath, true)) {
+                filter.writeTo(out);
+            }
+            fs.delete(path, false);
+            if (!fs.rename(tmpPath, path)) {
+                throw new IOException("Failed to rename " + tmpPath + " to " + path);
+            }
+        } catch (IOException e) {
+            throw new ExecuteTransformerException(e);
+        }
+    }
+
+    private void delete(final String appId) {
+        Path path = new Path(indexPath, appId + FILE_SUFFIX);
+        try {
+            path.getFileSystem(spark.sparkContext().hadoopConfiguration()).delete(path, false);
+        } catch (IOException e) {
+            throw new ExecuteTransformerException(e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.functions;
+import org.apache.spark.util.sketch.BloomFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.apache.spark.sql.functions.concat_ws;
+import static org.apache.spark.sql.functions.count;
+import static org.apache.spark.sql.functions.length;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.sum;
+import static software.aws.solution.clickstream.TransformerV2.APP_ID;
+
+/**
+ * The keys of the batch which the state tables are looked up by. Their app_ids, count and size are computed by one job
+ * and their bloom filter by another, both only when they are first used, and shared by all the state tables which are
+ * looked up by the same keys.
+ */
+@Slf4j
+class StateKeys {
+    private static final String KEY_SEPARATOR = "\u0001";
+    private static final double BLOOM_FILTER_FPP = 0.01;
+    // the null bits of a row, and the offset and size word of each string column
+    private static final long ROW_BYTES = 8L;
+    private static final long COLUMN_BYTES = 8L;
+
+    private final Dataset<Row> keyDataset;
+    private final StateKeys supersetKeys;
+    private List<String> appIds;
+    private long keyCount;
+    private long keyBytes;
+    private BloomFilter bloomFilter;
+
+    StateKeys(final Dataset<Row> keyDataset) {
+        this(keyDataset, null);
+    }
+
+    private StateKeys(final Dataset<Row> keyDataset, final StateKeys supersetKeys) {
+        this.keyDataset = keyDataset;
+        this.supersetKeys = supersetKeys;
+    }
+
+    /**
+     * @param subsetDataset a subset of these keys
+     * @return the keys of subsetDataset, they use the app_ids, the size and the bloom filter of these keys,
+     * which are a superset of theirs
+     */
+    StateKeys subset(final Dataset<Row> subsetDataset) {
+        return new StateKeys(subsetDataset, this);
+    }
+
+    Dataset<Row> getKeyDataset() {
+        return keyDataset;
+    }
+
+    List<String> getAppIds() {
+        if (supersetKeys != null) {
+            return supersetKeys.getAppIds();
+        }
+        computeStats();
+        return appIds;
+    }
+
+    long getKeyCount() {
+        if (supersetKeys != null) {
+            return supersetKeys.getKeyCount();
+        }
+        computeStats();
+        return keyCount;
+    }
+
+    /**
+     * @return the estimated size of the keys as the rows of a broadcast relation
+     */
+    long getKeyBytes() {
+        if (supersetKeys != null) {
+            return supersetKeys.getKeyBytes();
+        }
+        computeStats();
+        return keyBytes;
+    }
+
+    BloomFilter getBloomFilter() {
+        if (supersetKeys != null) {
+            return supersetKeys.getBloomFilter();
+        }
+        if (bloomFilter == null) {
+            bloomFilter = keyDataset.stat().bloomFilter(getKeyColumn(keyDataset.columns()), Math.max(getKeyCount(), 1L), BLOOM_FILTER_FPP);
+            log.info("state keys bloom filter keys: " + getKeyCount() + ", bits: " + bloomFilter.bitSize());
+        }
+        return bloomFilter;
+    }
+
+    static Column getKeyColumn(final String[] keyNames) {
+        return concat_ws(KEY_SEPARATOR, Arrays.stream(keyNames).map(functions::col).toArray(Column[]::new));
+    }
+
+    private void computeStats() {
+        if (appIds != null) {
+            return;
+        }
+        List<Row> appStats = keyDataset.groupBy(APP_ID)
+                .agg(count(lit(1)), sum(length(getKeyColumn(keyDataset.columns()))))
+                .collectAsList();
+        List<String> statsAppIds = new ArrayList<>();
+        long keyLength = 0L;
+        keyCount = 0L;
+        for (Row appStat : appStats) {
+            statsAppIds.add(appStat.getString(0));
+            keyCount += appStat.getLong(1);
+            keyLength += appStat.isNullAt(2) ? 0L : appStat.getLong(2);
+        }
+        keyBytes = keyLength + keyCount * (ROW_BYTES + COLUMN_BYTES * keyDataset.columns().length);
+        appIds = statsAppIds;
+        log.info("state keys apps: " + appIds.size() + ", keys: " + keyCount + ", estimated bytes: " + keyBytes);
+    }
+}
@@ -32,9 +32,9 @@ import static org.apache.spark.sql.functions.struct;
 import static org.apache.spark.sql.functions.array;
 import static org.apache.spark.sql.functions.regexp_extract;
 import static org.apache.spark.sql.functions.expr;
-import static org.apache.spark.sql.functions.get_json_object;
 
 import static software.aws.solution.clickstream.ContextUtil.PROJECT_ID_PROP;
+import static software.aws.solution.clickstream.AttributesConverter.getAttribute;
 import static software.aws.solution.clickstream.ETLRunner.DEBUG_LOCAL_PATH;
 import static software.aws.solution.clickstream.ETLRunner.getDistFields;
 
@@ -69,14 +69,16 @@ public final class Transformer {
     private final Cleaner cleaner = new Cleaner();
     private final UserPropertiesConverter userPropertiesConverter = new UserPropertiesConverter();
     private final EventParamsConverter eventParamsConverter = new EventParamsConverter();
+    private final AttributesConverter attributesConverter = new AttributesConverter();
 
     public Dataset<Row> transform(final Dataset<Row> dataset) {
-        log.info(new ETLMetric(dataset, "transform enter").toString());
-        Dataset<Row> cleanedDataset = cleaner.clean(dataset, DATA_SCHEMA_FILE_PATH);
-        ContextUtil.cacheDataset(cleanedDataset);
-        log.info(new ETLMetric(cleanedDataset, "after clean").toString());
+        Dataset<Row> inputDataset = ETLMetric.debugCount(dataset, "transform enter");
+        Dataset<Row> cachedDataset = cleaner.clean(inputDataset, DATA_SCHEMA_FILE_PATH);
+        ContextUtil.cacheDataset(cachedDataset);
+        Dataset<Row> cleanedDataset = ETLMetric.debugCount(cachedDataset, "after clean");
 
-        Dataset<Row> dataset1 = retrieveEventParams(cleanedDataset);
+        Dataset<Row> dataset0 = attributesConverter.transform(cleanedDataset);
+        Dataset<Row> dataset1 = retrieveEventParams(dataset0);
         Dataset<Row> dataset2 = convertAppInfo(dataset1);
         Dataset<Row> dataset3 = convertDevice(dataset2);
         Dataset<Row> dataset4 = convertTrafficSource(dataset3);
@@ -98,8 +100,7 @@ public final class Transformer {
         Dataset<Row> dataset11= dataset10.select(
                 transformOutFields.toArray(new Column[]{})
         );
-        log.info(new ETLMetric(dataset11, "transform return").toString());
-        return dataset11;
+        return ETLMetric.debugCount(dataset11, "transform return");
     }
 
     private Dataset<Row> convertUri(final Dataset<Row> dataset) {
@@ -156,7 +157,6 @@ public final class Transformer {
     }
 
     private Dataset<Row> convertPrivacyInfo(final Dataset<Row> dataset) {
-        Column attributesCol = col(DATA).getField(ATTRIBUTES);
         String keyName = KEY;
         String valueName = VALUE;
         return dataset.withColumn("privacy_info",
@@ -166,7 +166,7 @@ public final class Transformer {
                                 struct(lit(null).cast(DataTypes.DoubleType).alias(DOUBLE_VALUE),
                                         lit(null).cast(DataTypes.FloatType).alias(FLOAT_VALUE),
                                         lit(null).cast(DataTypes.LongType).alias(INT_VALUE),
-                                        get_json_object(attributesCol, "$._privacy_info_ads_storage").cast(DataTypes.StringType).alias(STRING_VALUE)
+                                        getAttribute("_privacy_info_ads_storage").cast(DataTypes.StringType).alias(STRING_VALUE)
                                 ).alias(valueName)),
 
                         struct(
@@ -174,7 +174,7 @@ public final class Transformer {
                                 struct(lit(null).cast(DataTypes.DoubleType).alias(DOUBLE_VALUE),
                                         lit(null).cast(DataTypes.FloatType).alias(FLOAT_VALUE),
                                         lit(null).cast(DataTypes.LongType).alias(INT_VALUE),
-                                        get_json_object(attributesCol, "$._privacy_info_analytics_storage").cast(DataTypes.StringType).alias(STRING_VALUE)
+                                        getAttribute("_privacy_info_analytics_storage").cast(DataTypes.StringType).alias(STRING_VALUE)
                                 ).alias(valueName)),
 
                         struct(
@@ -182,7 +182,7 @@ public final class Transformer {
                                 struct(lit(null).cast(DataTypes.DoubleType).alias(DOUBLE_VALUE),
                                         lit(null).cast(DataTypes.FloatType).alias(FLOAT_VALUE),
                                         lit(null).cast(DataTypes.LongType).alias(INT_VALUE),
-                                        get_json_object(attributesCol, "$._privacy_info_uses_transient_token").cast(DataTypes.StringType).alias(STRING_VALUE)
+                                        getAttribute("_privacy_info_uses_transient_token").cast(DataTypes.StringType).alias(STRING_VALUE)
                                 ).alias(valueName))
 
                 )
@@ -191,12 +191,11 @@ public final class Transformer {
 
 
     private Dataset<Row> convertTrafficSource(final Dataset<Row> dataset) {
-        Column attributesCol = col(DATA).getField(ATTRIBUTES);
         return dataset.withColumn("traffic_source",
                 struct(
-                        get_json_object(attributesCol, "$._traffic_source_medium").alias("medium"),
-                        get_json_object(attributesCol, "$._traffic_source_name").alias("name"),
-                        get_json_object(attributesCol, "$._traffic_source_source").alias("source")
+                        getAttribute("_traffic_source_medium").alias("medium"),
+                        getAttribute("_traffic_source_name").alias("name"),
+                        getAttribute("_traffic_source_source").alias("source")
                 )
         );
     }
@@ -206,13 +205,11 @@ public final class Transformer {
     }
 
     private Dataset<Row> convertAppInfo(final Dataset<Row> dataset) {
-        Column attributesCol = col(DATA).getField(ATTRIBUTES);
-
         return dataset.withColumn("app_info",
                 struct(
                         (col(DATA).getItem("app_id")).alias("app_id"),
                         (col(DATA).getItem("app_package_name")).alias("id"),
-                        get_json_object(attributesCol, "$._channel").alias("install_source"),
+                        getAttribute("_channel").alias("install_source"),
                         (col(DATA).getItem("app_version")).alias("version")));
     }
 
@@ -18,6 +18,8 @@ import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.api.java.UDF1;
+import org.apache.spark.sql.expressions.UserDefinedFunction;
 import org.apache.spark.sql.catalyst.expressions.GenericRow;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.DataType;
@@ -27,6 +29,9 @@ import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.SparkSession;
 
 import org.apache.spark.sql.functions;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.sketch.BloomFilter;
+import scala.jdk.javaapi.CollectionConverters;
 
 import java.nio.file.Paths;
 import java.text.DateFormat;
@@ -41,6 +46,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Optional;
 import java.util.Objects;
+import java.util.function.UnaryOperator;
 
 import static org.apache.spark.sql.functions.col;
 import static org.apache.spark.sql.functions.coalesce;
@@ -59,12 +65,13 @@ import static org.apache.spark.sql.functions.array_sort;
 import static org.apache.spark.sql.functions.array_distinct;
 import static org.apache.spark.sql.functions.flatten;
 import static org.apache.spark.sql.functions.max_by;
+import static org.apache.spark.sql.functions.broadcast;
+import static org.apache.spark.sql.functions.udf;
 
 import static software.aws.solution.clickstream.ContextUtil.PROJECT_ID_PROP;
 import static software.aws.solution.clickstream.Transformer.GEO_FOR_ENRICH;
 import static software.aws.solution.clickstream.Transformer.TIMESTAMP;
 import static software.aws.solution.clickstream.Transformer.PLATFORM;
-import static software.aws.solution.clickstream.Transformer.ATTRIBUTES;
 import static software.aws.solution.clickstream.Transformer.LOCALE;
 import static software.aws.solution.clickstream.Transformer.UA_BROWSER;
 import static software.aws.solution.clickstream.Transformer.UA_BROWSER_VERSION;
@@ -82,7 +89,16 @@ public final class TransformerV2 {
     public static final String TABLE_ETL_USER_PAGE_REFERER = "etl_user_page_referer";
     public static final String UPDATE_DATE = "update_date";
     public static final String INCREMENTAL_SUFFIX = "_incremental_v1";
+    /**
+     * The full state tables have the state of all the keys. Between two daily merges a key has one version appended
+     * by each batch which has the key, so a reader of the table takes the version of the latest event_timestamp of
+     * each key, the same as the getAgg*Dataset of the table. mergeIncrementalTables rewrites the tables with one
+     * version per key.
+     */
     public static final String FULL_SUFFIX = "_full_v1";
+    public static final String STATE_PRUNE_MODE_BROADCAST = "broadcast";
+    public static final String STATE_PRUNE_MODE_BLOOM = "bloom";
+    public static final String STATE_PRUNE_MODE_SHUFFLE = "shuffle";
     public static final String DATA_SCHEMA_V2_FILE_PATH = System.getProperty("data.schema.file.path.v2", "/data_schema_v2.json");
     public static final String PROPERTIES = "properties";
     public static final String YYYYMMDD = "yyyyMMdd";
@@ -112,18 +128,20 @@ public final class TransformerV2 {
     private final EventParamsConverter eventParamsConverter = new EventParamsConverter();
     private final UserPropertiesConverter userPropertiesConverter = new UserPropertiesConverter();
     private final KvConverter kvConverter = new KvConverter();
+    private final AttributesConverter attributesConverter = new AttributesConverter();
     private static Map<String, StructType> schemaMap = new HashMap<>();
+    // the merged state datasets read by the sinks, released by postWrite once the sinks are written
+    private static final List<Dataset<Row>> PERSISTED_STATE_DATASETS = new ArrayList<>();
 
-    private static Dataset<Row> getUserTrafficSourceDataset(final Dataset<Row> userDataset, final long newUserCount) {
-        Column dataCol = col("data");
-        Column attributesCol = dataCol.getField(ATTRIBUTES);
+    private static Dataset<Row> getUserTrafficSourceDataset(final Dataset<Row> userDataset, final long newUserCount,
+                                                            final StateKeys userKeys) {
         SparkSession spark = userDataset.sparkSession();
         String tableName = TABLE_ETL_USER_TRAFFIC_SOURCE;
 
         Dataset<Row> newUserTrafficSourceDataset = userDataset
-                .withColumn(TRAFFIC_SOURCE_MEDIUM, get_json_object(attributesCol, "$._traffic_source_medium").cast(DataTypes.StringType))
-                .withColumn(TRAFFIC_SOURCE_NAME, get_json_object(attributesCol, "$._traffic_source_name").cast(DataTypes.StringType))
-                .withColumn(TRAFFIC_SOURCE_SOURCE, get_json_object(attributesCol, "$._traffic_source_source").cast(DataTypes.StringType))
+                .withColumn(TRAFFIC_SOURCE_MEDIUM, getAttribute("_traffic_source_medium").cast(DataTypes.StringType))
+                .withColumn(TRAFFIC_SOURCE_NAME, getAttribute("_traffic_source_name").cast(DataTypes.StringType))
+                .withColumn(TRAFFIC_SOURCE_SOURCE, getAttribute("_traffic_source_source").cast(DataTypes.StringType))
                 .filter(col(TRAFFIC_SOURCE_SOURCE).isNotNull())
                 .select(APP_ID,
                         USER_PSEUDO_ID,
@@ -139,17 +157,13 @@ public final class TransformerV2 {
 
         if (newTrafficSourceCount > 0) {
             Dataset<Row> newAggUserTrafficSourceDataset = getAggTrafficSourceDataset(newUserTrafficSourceDataset);
-            log.info("newAggUserTrafficSourceDataset count:" + newAggUserTrafficSourceDataset.count());
-            String path = saveIncrementalDatasetWithTableName(tableName, newAggUserTrafficSourceDataset);
-            Dataset<Row> allTrafficSourceDataset = readDatasetFromPath(spark, path, ContextUtil.getUserKeepDays());
-            log.info("allTrafficSourceDataset count:" + allTrafficSourceDataset.count());
-            Dataset<Row> aggTrafficSourceDataset = getAggTrafficSourceDataset(allTrafficSourceDataset);
-            log.info("aggTrafficSourceDataset count:" + aggTrafficSourceDataset.count());
-            saveFullDataset(tableName, aggTrafficSourceDataset);
-            return aggTrafficSourceDataset;
+            saveIncrementalDatasetWithTableName(tableName,
+                    ETLMetric.debugCount(newAggUserTrafficSourceDataset, "newAggUserTrafficSourceDataset"));
+            Dataset<Row> aggTrafficSourceDataset = appendMergedState(tableName, newAggUserTrafficSourceDataset,
+                    userKeys, ContextUtil.getUserKeepDays(), TransformerV2::getAggTrafficSourceDataset);
+            return ETLMetric.debugCount(aggTrafficSourceDataset, "aggTrafficSourceDataset");
         } else if (newUserCount > 0 && newTrafficSourceCount == 0) {
-            String pathFull = getPathForTable(tableName + FULL_SUFFIX);
-            return readDatasetFromPath(spark, pathFull, ContextUtil.getUserKeepDays());
+            return getAggTrafficSourceDataset(readFullDataset(spark, tableName, userKeys, ContextUtil.getUserKeepDays()));
         } else {
             return null;
         }
@@ -167,16 +181,14 @@ public final class TransformerV2 {
     }
 
     private static Dataset<Row> getPageRefererDataset(final Dataset<Row> userDataset,
-                                                      final long newUserCount) {
-        Column dataCol = col("data");
-        Column attributesCol = dataCol.getField(ATTRIBUTES);
+                                                      final long newUserCount, final StateKeys userKeys) {
         SparkSession spark = userDataset.sparkSession();
         String tableName = TABLE_ETL_USER_PAGE_REFERER;
 
         Dataset<Row> newUserRefererDataset = userDataset.filter(col(EVENT_NAME).isin("_page_view", "page_view", "pageView", "PageView"))
                 .withColumn(PAGE_REFERER,
-                        coalesce(get_json_object(attributesCol, "$._page_referer").cast(DataTypes.StringType),
-                                get_json_object(attributesCol, "$._referer").cast(DataTypes.StringType)))
+                        coalesce(getAttribute("_page_referer").cast(DataTypes.StringType),
+                                getAttribute("_referer").cast(DataTypes.StringType)))
                 .filter(col(PAGE_REFERER).isNotNull())
                 .select(APP_ID, USER_PSEUDO_ID, PAGE_REFERER, EVENT_TIMESTAMP);
 
@@ -187,17 +199,13 @@ public final class TransformerV2 {
 
         if (newRefererCount > 0) {
             Dataset<Row> newAggUserRefererDataset = getAggUserRefererDataset(newUserRefererDataset);
-            log.info("newAggUserRefererDataset count:" + newAggUserRefererDataset.count());
-            String path = saveIncrementalDatasetWithTableName(tableName, newAggUserRefererDataset);
-            Dataset<Row> allUserRefererDataset = readDatasetFromPath(spark, path, ContextUtil.getUserKeepDays());
-            log.info("allUserRefererDataset count:" + allUserRefererDataset.count());
-            Dataset<Row> aggUserRefererDataset = getAggUserRefererDataset(allUserRefererDataset);
-            log.info("aggTrafficSourceDataset count:" + aggUserRefererDataset.count());
-            saveFullDataset(tableName, aggUserRefererDataset);
-            return aggUserRefererDataset;
+            saveIncrementalDatasetWithTableName(tableName,
+                    ETLMetric.debugCount(newAggUserRefererDataset, "newAggUserRefererDataset"));
+            Dataset<Row> aggUserRefererDataset = appendMergedState(tableName, newAggUserRefererDataset,
+                    userKeys, ContextUtil.getUserKeepDays(), TransformerV2::getAggUserRefererDataset);
+            return ETLMetric.debugCount(aggUserRefererDataset, "aggUserRefererDataset");
         } else if (newUserCount > 0 && newRefererCount == 0) {
-            String pathFull = getPathForTable(tableName + FULL_SUFFIX);
-            return readDatasetFromPath(spark, pathFull, ContextUtil.getUserKeepDays());
+            return getAggUserRefererDataset(readFullDataset(spark, tableName, userKeys, ContextUtil.getUserKeepDays()));
         } else {
             return null;
         }
@@ -213,7 +221,8 @@ public final class TransformerV2 {
                 .distinct();
     }
 
-    private static Dataset<Row> getUserDeviceIdDataset(final Dataset<Row> userDataset, final long newUserCount) {
+    private static Dataset<Row> getUserDeviceIdDataset(final Dataset<Row> userDataset, final long newUserCount,
+                                                       final StateKeys userKeys) {
         Column dataCol = col("data");
         SparkSession spark = userDataset.sparkSession();
         String tableName = TABLE_ETL_USER_DEVICE_ID;
@@ -230,18 +239,13 @@ public final class TransformerV2 {
 
         if (newDeviceIdCount > 0) {
             Dataset<Row> newAggUserDeviceIdDataset = getAggUserDeviceIdDataset(newUserDeviceIdDataset);
-            log.info("newAggUserDeviceIdDataset count:" + newAggUserDeviceIdDataset.count());
-            String path = saveIncrementalDatasetWithTableName(tableName, newAggUserDeviceIdDataset);
-            Dataset<Row> allUserDeviceIdDataset = readDatasetFromPath(spark, path,
-                    ContextUtil.getUserKeepDays());
-            log.info("allUserDeviceIdDataset count:" + allUserDeviceIdDataset.count());
-            Dataset<Row> aggUserDeviceIdDataset = getAggUserDeviceIdDataset(allUserDeviceIdDataset);
-            log.info("aggUserDeviceIdDataset count:" + allUserDeviceIdDataset.count());
-            saveFullDataset(tableName, aggUserDeviceIdDataset);
-            return aggUserDeviceIdDataset;
+            saveIncrementalDatasetWithTableName(tableName,
+                    ETLMetric.debugCount(newAggUserDeviceIdDataset, "newAggUserDeviceIdDataset"));
+            Dataset<Row> aggUserDeviceIdDataset = appendMergedState(tableName, newAggUserDeviceIdDataset,
+                    userKeys, ContextUtil.getUserKeepDays(), TransformerV2::getAggUserDeviceIdDataset);
+            return ETLMetric.debugCount(aggUserDeviceIdDataset, "aggUserDeviceIdDataset");
         } else if (newUserCount > 0 && newDeviceIdCount == 0) {
-            String pathFull = getPathForTable(tableName + FULL_SUFFIX);
-            return readDatasetFromPath(spark, pathFull, ContextUtil.getUserKeepDays());
+            return getAggUserDeviceIdDataset(readFullDataset(spark, tableName, userKeys, ContextUtil.getUserKeepDays()));
         } else {
             return null;
         }
@@ -264,9 +268,81 @@ public final class TransformerV2 {
 
 
 
-    private static void saveFullDataset(final String tbName, final Dataset<Row> dataset) {
-        String path = getPathForTable(tbName + FULL_SUFFIX);
-        overWriteDataset(path, dataset);
+    private static Dataset<Row> getUserKeyDataset(final Dataset<Row> userDataset) {
+        return userDataset.select(col(APP_ID), col(USER_PSEUDO_ID)).distinct();
+    }
+
+    /**
+     * Merges the aggregated rows of the batch with the state of their keys and appends the merged rows to the full
+     * state table as the latest version of the keys. It is not an upsert: the older versions of the keys stay in the
+     * table, so every reader of the table re-aggregates the versions of a key with aggFunction, which is idempotent,
+     * until mergeIncrementalTables rewrites the table with one version per key daily. The write is proportional to
+     * the batch, the read is not, see {@link #readFullDataset}.
+     *
+     * @return the merged state of the keys in keyDataset
+     */
+    private static Dataset<Row> appendMergedState(final String tableName, final Dataset<Row> newAggDataset,
+                                                  final StateKeys keys, final int keepDays,
+                                                  final UnaryOperator<Dataset<Row>> aggFunction) {
+        Dataset<Row> fullDataset = readFullDataset(newAggDataset.sparkSession(), tableName, keys, keepDays);
+        // computed once for the append below and for the sinks
+        Dataset<Row> mergedDataset = aggFunction.apply(fullDataset.unionByName(newAggDataset))
+                .persist(StorageLevel.MEMORY_AND_DISK());
+        synchronized (PERSISTED_STATE_DATASETS) {
+            PERSISTED_STATE_DATASETS.add(mergedDataset);
+        }
+
+        Column[] keyCols = Arrays.stream(keys.getKeyDataset().columns()).map(functions::col).toArray(Column[]::new);
+        Dataset<Row> newKeyDataset = newAggDataset.select(keyCols).distinct();
+        appendStateDataset(getPathForTable(tableName + FULL_SUFFIX), joinOnKeys(mergedDataset, newKeyDataset, "left_semi"));
+        return mergedDataset;
+    }
+
+    /**
+     * Reads the state versions of the keys in keyDataset from the full state table. Only the app_id and update_date
+     * partitions prune the files, the keys are filtered by a semi join, so it scans all the files of the batch apps
+     * in the keep days window: the last daily merge and a version file per batch after it.
+     *
+     * @return the unmerged state versions of the keys in keyDataset from the full state table
+     */
+    private static Dataset<Row> readFullDataset(final SparkSession spark, final String tableName,
+                                                final StateKeys keys, final int keepDays) {
+        String pathFull = getPathForTable(tableName + FULL_SUFFIX);
+        // only the app_id partitions of the keys are read
+        Dataset<Row> fullDataset = readDatasetFromPath(spark, pathFull, keepDays)
+                .filter(col(APP_ID).isin(keys.getAppIds().toArray()))
+                .drop(UPDATE_DATE);
+        return semiJoinOnKeys(fullDataset, keys);
+    }
+
+    /**
+     * Skips the state rows of the keys not in keys as early as possible, by state.prune.mode:
+     * 'broadcast' broadcasts the batch keys to the semi join, so the full state is not shuffled, the keys over
+     * spark.sql.autoBroadcastJoinThreshold are not broadcast;
+     * 'bloom' filters the full state by a bloom filter of the batch keys before the semi join shuffle;
+     * 'shuffle' is a plain semi join.
+     */
+    private static Dataset<Row> semiJoinOnKeys(final Dataset<Row> dataset, final StateKeys keys) {
+        String pruneMode = ContextUtil.getStatePruneMode();
+        Dataset<Row> keyDataset = keys.getKeyDataset();
+        if (STATE_PRUNE_MODE_BROADCAST.equals(pruneMode)) {
+            long broadcastThreshold = dataset.sparkSession().sessionState().conf().autoBroadcastJoinThreshold();
+            if (keys.getKeyBytes() <= broadcastThreshold) {
+                return joinOnKeys(dataset, broadcast(keyDataset), "left_semi");
+            }
+            log.info("state keys of " + keys.getKeyBytes() + " bytes are not broadcast, threshold: " + broadcastThreshold);
+            return joinOnKeys(dataset, keyDataset, "left_semi");
+        }
+        if (STATE_PRUNE_MODE_BLOOM.equals(pruneMode)) {
+            BloomFilter keyBloomFilter = keys.getBloomFilter();
+            UserDefinedFunction mightContainUdf = udf((UDF1<String, Boolean>) keyBloomFilter::mightContainString, DataTypes.BooleanType);
+            return joinOnKeys(dataset.filter(mightContainUdf.apply(StateKeys.getKeyColumn(keyDataset.columns()))), keyDataset, "left_semi");
+        }
+        return joinOnKeys(dataset, keyDataset, "left_semi");
+    }
+
+    private static Dataset<Row> joinOnKeys(final Dataset<Row> dataset, final Dataset<Row> keyDataset, final String joinType) {
+        return dataset.join(keyDataset, CollectionConverters.asScala(Arrays.asList(keyDataset.columns())).toList(), joinType);
     }
 
     private static void overWriteDataset(final String path, final Dataset<Row> dataset) {
@@ -278,13 +354,26 @@ public final class TransformerV2 {
         int numPartitions = dataset1.rdd().getNumPartitions();
         numPartitions = Math.max(Math.min(numPartitions, 10), 1);
 
-        dataset1.coalesce(numPartitions).write()
+        writeStateDataset(dataset1, numPartitions, path, SaveMode.Overwrite);
+    }
+
+    private static void writeStateDataset(final Dataset<Row> dataset, final int numPartitions,
+                                          final String path, final SaveMode saveMode) {
+        dataset.coalesce(numPartitions).write()
                 .partitionBy(UPDATE_DATE, APP_ID)
-                .option(COMPRESSION, SNAPPY)
-                .mode(SaveMode.Overwrite)
+                .options(getParquetWriteOptions(path))
+                .mode(saveMode)
                 .parquet(path);
     }
 
+    private static Map<String, String> getParquetWriteOptions(final String path) {
+        return ContextUtil.getParquetWriteConfig().getWriteOptions(getTableName(path));
+    }
+
+    private static String getTableName(final String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
     private static String getPathForTable(final String tableName) {
         return Paths.get(ContextUtil.getWarehouseDir(), tableName).toString()
                 .replace("s3:/", "s3://");
@@ -302,28 +391,25 @@ public final class TransformerV2 {
 
     private static String saveIncrementalDataset(final ETLRunner.TableName tableName, final Dataset<Row> newItemsDataset) {
         String path = getPathForTable(tableName.name + INCREMENTAL_SUFFIX);
-        saveIncrementalDataset(path, newItemsDataset);
+        appendStateDataset(path, newItemsDataset);
         return path;
     }
 
     private static String saveIncrementalDatasetWithTableName(final String tableName, final Dataset<Row> newItemsDataset) {
         String path = getPathForTable(tableName + INCREMENTAL_SUFFIX);
-        saveIncrementalDataset(path, newItemsDataset);
+        appendStateDataset(path, newItemsDataset);
         return path;
     }
 
-    private static String saveIncrementalDataset(final String path, final Dataset<Row> newItemsDataset) {
-        log.info("saveIncrementalDataset path=" + path);
+    private static String appendStateDataset(final String path, final Dataset<Row> newItemsDataset) {
+        log.info("appendStateDataset path=" + path);
         Date now = new Date();
         DateFormat dateFormatYMD = new SimpleDateFormat(YYYYMMDD);
         String yyyyMMdd = dateFormatYMD.format(now);
         Dataset<Row> newItemsDatasetSave = newItemsDataset.withColumn(UPDATE_DATE, lit(yyyyMMdd).cast(DataTypes.StringType));
         schemaMap.put(path, newItemsDatasetSave.schema());
 
-        newItemsDatasetSave.coalesce(1).write()
-                .partitionBy(UPDATE_DATE, APP_ID)
-                .option(COMPRESSION, SNAPPY)
-                .mode(SaveMode.Append).parquet(path);
+        writeStateDataset(newItemsDatasetSave, 1, path, SaveMode.Append);
         return path;
     }
 
@@ -331,16 +417,19 @@ public final class TransformerV2 {
                                                     final int fromNDays) {
         log.info("readDatasetFromPath path=" + path);
         Date nDaysBeforeDate = Date.from(Instant.now().minusSeconds(fromNDays * 24 * 3600L));
-        StructType schemaRead = schemaMap.get(path);
         DateFormat dateFormatYMD = new SimpleDateFormat(YYYYMMDD);
         String nDaysBefore = dateFormatYMD.format(nDaysBeforeDate);
-        Dataset<Row> fullItemsDataset;
+        return readStateDataset(spark, path)
+                .filter(
+                        expr(String.format("%s >= '%s'", UPDATE_DATE, nDaysBefore)).and(
+                                expr(String.format("%s >= %s", EVENT_TIMESTAMP, nDaysBeforeDate.getTime()))
+                        ));
+    }
+
+    private static Dataset<Row> readStateDataset(final SparkSession spark, final String path) {
+        StructType schemaRead = schemaMap.get(path);
         try {
-            fullItemsDataset = spark.read().schema(schemaRead).parquet(path)
-                    .filter(
-                            expr(String.format("%s >= '%s'", UPDATE_DATE, nDaysBefore)).and(
-                                    expr(String.format("%s >= %s", EVENT_TIMESTAMP, nDaysBeforeDate.getTime()))
-                            ));
+            return spark.read().schema(schemaRead).parquet(path);
         } catch (Exception e) {
             log.error(e.getMessage());
             if (e.getMessage().toLowerCase().contains("path does not exist")) {
@@ -349,7 +438,6 @@ public final class TransformerV2 {
             }
             throw e;
         }
-        return fullItemsDataset;
     }
 
     private static Dataset<Row> getAggItemDataset(final Dataset<Row> dataset2) {
@@ -362,30 +450,32 @@ public final class TransformerV2 {
     }
 
     public List<Dataset<Row>> transform(final Dataset<Row> dataset) {
-        log.info(new ETLMetric(dataset, "transform enter").toString());
-        Dataset<Row> cleanedDataset = cleaner.clean(dataset, DATA_SCHEMA_V2_FILE_PATH);
-        ContextUtil.cacheDataset(cleanedDataset);
-        log.info(new ETLMetric(cleanedDataset, "after clean").toString());
+        recoverStateTables(dataset.sparkSession());
+        Dataset<Row> inputDataset = ETLMetric.debugCount(dataset, "transform enter");
+        Dataset<Row> cachedDataset = cleaner.clean(inputDataset, DATA_SCHEMA_V2_FILE_PATH);
+        ContextUtil.cacheDataset(cachedDataset);
+        Dataset<Row> cleanedDataset = ETLMetric.debugCount(cachedDataset, "after clean");
         Column dataCol = col("data");
 
-        Dataset<Row> dataset0 = cleanedDataset.withColumn(APP_ID, dataCol.getField(APP_ID))
+        Dataset<Row> dataset0 = attributesConverter.transform(cleanedDataset)
+                .withColumn(APP_ID, dataCol.getField(APP_ID))
                 .withColumn(USER_PSEUDO_ID, dataCol.getField("unique_id").cast(DataTypes.StringType))
                 .withColumn(EVENT_NAME, dataCol.getField("event_type"))
                 .withColumn(EVENT_DATE, to_date(timestamp_seconds(dataCol.getItem(TIMESTAMP).$div(1000))))
                 .withColumn(EVENT_TIMESTAMP, dataCol.getItem(TIMESTAMP))
-                .withColumn(USER_ID, get_json_object(dataCol.getField("user"), "$._user_id.value").cast(DataTypes.StringType));
+                // parsed once for the user_id of the events and for the user properties of extractUser
+                .withColumn(UserPropertiesConverter.PARSED_USER, UserPropertiesConverter.parseUser(dataCol.getField("user")))
+                .withColumn(USER_ID, col(UserPropertiesConverter.PARSED_USER).getField(USER_ID));
         Dataset<Row> dataset1 = convertAppInfo(dataset0);
-        Dataset<Row> eventDataset = extractEvent(dataset1);
-        log.info(new ETLMetric(eventDataset, "eventDataset").toString());
+        Dataset<Row> eventDataset = ETLMetric.debugCount(extractEvent(dataset1), "eventDataset");
 
-        Dataset<Row> eventParameterDataset = extractEventParameter(dataset1);
-        log.info(new ETLMetric(eventParameterDataset, "eventParameterDataset").toString());
+        Dataset<Row> eventParameterDataset = ETLMetric.debugCount(extractEventParameter(dataset1), "eventParameterDataset");
 
-        Optional<Dataset<Row>> itemDataset = extractItem(dataset1);
-        itemDataset.ifPresent(rowDataset -> log.info(new ETLMetric(rowDataset, "itemDataset").toString()));
+        Optional<Dataset<Row>> itemDataset = extractItem(dataset1)
+                .map(rowDataset -> ETLMetric.debugCount(rowDataset, "itemDataset"));
 
-        Optional<Dataset<Row>> userDataset = extractUser(dataset1);
-        userDataset.ifPresent(rowDataset -> log.info(new ETLMetric(rowDataset, "userDataset").toString()));
+        Optional<Dataset<Row>> userDataset = extractUser(dataset1)
+                .map(rowDataset -> ETLMetric.debugCount(rowDataset, "userDataset"));
 
         return Arrays.asList(eventDataset,
                 eventParameterDataset,
@@ -451,7 +541,6 @@ public final class TransformerV2 {
     }
 
     private Optional<Dataset<Row>> extractItem(final Dataset<Row> dataset) {
-        SparkSession spark = dataset.sparkSession();
         Column dataCol = col("data");
         ArrayType itemsType = DataTypes.createArrayType(DataTypes.StringType);
         String itemJson = "item_json";
@@ -495,32 +584,16 @@ public final class TransformerV2 {
         Column[] selectCols = selectedFields.stream().map(functions::col).toArray(Column[]::new);
         Dataset<Row> newItemsDataset = dataset2.select(selectCols);
         Dataset<Row> newAggItemsDataset = getAggItemDataset(newItemsDataset);
-        long newCount = newAggItemsDataset.count();
-        log.info("newAggItemsDataset count  " + newCount);
-
-        String path = saveIncrementalDataset(ETLRunner.TableName.ITEM, newAggItemsDataset);
-        Dataset<Row> fullItemsDataset = readDatasetFromPath(spark, path,
-                ContextUtil.getItemKeepDays()
-        );
-
-        Dataset<Row> fullAggItemsDataset = getAggItemDataset(fullItemsDataset);
-        log.info("fullAggItemsDataset count " + fullAggItemsDataset.count());
-        Dataset<Row> fullAggItemsDatasetRt = fullAggItemsDataset.select(
-                APP_ID,
-                EVENT_DATE,
-                EVENT_TIMESTAMP,
-                "id",
-                PROPERTIES
-        );
-        saveFullDataset(ETLRunner.TableName.ITEM.name, fullAggItemsDatasetRt);
+
+        saveIncrementalDataset(ETLRunner.TableName.ITEM,
+                ETLMetric.debugCount(newAggItemsDataset, "newAggItemsDataset"));
+        appendMergedState(tableName, newAggItemsDataset, new StateKeys(newAggItemsDataset.select(APP_ID, "id").distinct()),
+                ContextUtil.getItemKeepDays(), TransformerV2::getAggItemDataset);
 
         return Optional.of(newAggItemsDataset);
     }
 
     private Optional<Dataset<Row>> extractUser(final Dataset<Row> dataset) {
-        SparkSession spark = dataset.sparkSession();
-        Column dataCol = col("data");
-        Column attributesCol = dataCol.getField(ATTRIBUTES);
         Dataset<Row> userDataset = dataset.filter((col(USER_PSEUDO_ID).isNotNull()));
 
         Dataset<Row> possibleUpdateUserIdDataset = dataset.select(col(APP_ID), col(USER_PSEUDO_ID)).distinct();
@@ -532,15 +605,17 @@ public final class TransformerV2 {
         long newUserCount = profileSetDataset.count();
         log.info(NEW_USER_COUNT + ":" + newUserCount);
 
-        Dataset<Row> userReferrerDataset = getPageRefererDataset(userDataset, newUserCount);
-        Dataset<Row> userDeviceIdDataset = getUserDeviceIdDataset(userDataset, newUserCount);
-        Dataset<Row> userTrafficSourceDataset = getUserTrafficSourceDataset(userDataset, newUserCount);
+        // the state tables of the users are looked up by the same keys
+        StateKeys userKeys = new StateKeys(getUserKeyDataset(userDataset));
+        Dataset<Row> userReferrerDataset = getPageRefererDataset(userDataset, newUserCount, userKeys);
+        Dataset<Row> userDeviceIdDataset = getUserDeviceIdDataset(userDataset, newUserCount, userKeys);
+        Dataset<Row> userTrafficSourceDataset = getUserTrafficSourceDataset(userDataset, newUserCount, userKeys);
 
         Dataset<Row> profileSetDataset1 = this.userPropertiesConverter.transform(profileSetDataset);
 
         Dataset<Row> newUserProfileMainDataset = profileSetDataset1
                 .withColumn(FIRST_VISIT_DATE, to_date(timestamp_seconds(col(USER_FIRST_TOUCH_TIMESTAMP).$div(1000))))
-                .withColumn(CHANNEL, get_json_object(attributesCol, "$._channel").alias("install_source"))
+                .withColumn(CHANNEL, getAttribute("_channel").alias("install_source"))
                 .select(
                         APP_ID,
                         EVENT_DATE,
@@ -565,16 +640,19 @@ public final class TransformerV2 {
         Objects.requireNonNull(userDeviceIdDataset);
         Objects.requireNonNull(userTrafficSourceDataset);
 
-        log.info("newUserProfileMainDataset:" + newUserProfileMainDataset.count());
-
         Dataset<Row> newAggUserProfileMainDataset = getAggUserDataset(newUserProfileMainDataset);
-        log.info("newAggUserProfileMainDataset count " + newAggUserProfileMainDataset.count());
 
-        String path = saveIncrementalDataset(ETLRunner.TableName.USER, newAggUserProfileMainDataset);
-        Dataset<Row> fullUsersDataset = readDatasetFromPath(spark, path, ContextUtil.getUserKeepDays());
-        Dataset<Row> fullAggUserDataset = getAggUserDataset(fullUsersDataset);
-        log.info("fullAggUserDataset count " + fullAggUserDataset.count());
-        saveFullDataset(ETLRunner.TableName.USER.name, fullAggUserDataset);
+        saveIncrementalDataset(ETLRunner.TableName.USER,
+                ETLMetric.debugCount(newAggUserProfileMainDataset, "newAggUserProfileMainDataset"));
+        StateKeys userStateKeys = userKeys;
+        if (ContextUtil.isStateKeyIndexEnabled()) {
+            // the new users are not in the key index, their state is not looked up
+            StateKeyIndex userKeyIndex = new StateKeyIndex(dataset.sparkSession(), getPathForTable(tableName + FULL_SUFFIX));
+            userStateKeys = userKeys.subset(userKeyIndex.filterKnownKeys(userKeys.getKeyDataset(), userKeys.getAppIds()));
+            userKeyIndex.add(newAggUserProfileMainDataset, userKeys.getAppIds());
+        }
+        Dataset<Row> fullAggUserDataset = ETLMetric.debugCount(appendMergedState(tableName, newAggUserProfileMainDataset,
+                userStateKeys, ContextUtil.getUserKeepDays(), TransformerV2::getAggUserDataset), "fullAggUserDataset");
 
         Column userPseudoIdCol = fullAggUserDataset.col(USER_PSEUDO_ID);
         Column appIdCol = fullAggUserDataset.col(APP_ID);
@@ -591,7 +669,6 @@ public final class TransformerV2 {
                 .join(userTrafficSourceDataset, userIdJoinForTrafficSource, "left")
                 .join(userReferrerDataset, userIdJoinForPageReferrer, "left");
 
-        log.info("joinedPossibleUpdateUserDataset:" + joinedPossibleUpdateUserDataset.count());
         Dataset<Row> joinedPossibleUpdateUserDatasetRt = joinedPossibleUpdateUserDataset.select(appIdCol,
                 col(EVENT_DATE),
                 eventTimestampCol,
@@ -619,7 +696,7 @@ public final class TransformerV2 {
         schemaMap.put(pathIncremental, schema);
     }
 
-    private Dataset<Row> getAggUserDataset(final Dataset<Row> newUserDataset) {
+    private static Dataset<Row> getAggUserDataset(final Dataset<Row> newUserDataset) {
         return newUserDataset.groupBy(APP_ID, USER_PSEUDO_ID)
                 .agg(max_by(struct(expr("*")), col(EVENT_TIMESTAMP)).alias("user"))
                 .select(expr("user.*"))
@@ -661,25 +738,21 @@ public final class TransformerV2 {
     }
 
     private Dataset<Row> convertTrafficSource(final Dataset<Row> dataset) {
-        Column dataCol = col("data");
-        Column attributesCol = dataCol.getField(ATTRIBUTES);
         return dataset
                 .withColumn("traffic_source", struct(
-                        get_json_object(attributesCol, "$._traffic_source_medium").alias("medium"),
-                        get_json_object(attributesCol, "$._traffic_source_name").alias("name"),
-                        get_json_object(attributesCol, "$._traffic_source_source").alias("source")));
+                        getAttribute("_traffic_source_medium").alias("medium"),
+                        getAttribute("_traffic_source_name").alias("name"),
+                        getAttribute("_traffic_source_source").alias("source")));
     }
 
 
     private Dataset<Row> convertAppInfo(final Dataset<Row> dataset) {
         Column dataCol = col("data");
-        Column attributesCol = dataCol.getField(ATTRIBUTES);
-
         return dataset
                 .withColumn("app_info", struct(
                         (dataCol.getItem(APP_ID)).alias(APP_ID),
                         (dataCol.getItem("app_package_name")).alias("id"),
-                        get_json_object(attributesCol, "$._channel").alias("install_source"),
+                        getAttribute("_channel").alias("install_source"),
                         (dataCol.getItem("app_version")).alias("version")));
     }
 
@@ -714,11 +787,58 @@ public final class TransformerV2 {
     }
 
     public Dataset<Row> postTransform(final Dataset<Row> dataset) {
-        SparkSession sparkSession = dataset.sparkSession();
-        mergeIncrementalTables(sparkSession);
         return dataset.drop("ua", GEO_FOR_ENRICH);
     }
 
+    /**
+     * Runs after all the sinks are written: releases the merged state read by the sinks, then merges and compacts
+     * the state tables.
+     */
+    public void postWrite(final SparkSession sparkSession) {
+        synchronized (PERSISTED_STATE_DATASETS) {
+            PERSISTED_STATE_DATASETS.forEach(Dataset::unpersist);
+            PERSISTED_STATE_DATASETS.clear();
+        }
+        mergeIncrementalTables(sparkSession);
+        if (ContextUtil.isStateCompactEnabled()) {
+            compactStateTables(sparkSession);
+        }
+    }
+
+    /**
+     * Compacts the small files appended to the state tables by the runs since the last merge.
+     */
+    public static void compactStateTables(final SparkSession sparkSession) {
+        StateCompactor compactor = new StateCompactor(sparkSession,
+                ContextUtil.getStateCompactFileCount(), ContextUtil.getStateCompactTargetFileSizeBytes());
+        for (String path : getCompactedStatePaths()) {
+            compactor.compact(path, getParquetWriteOptions(path));
+        }
+    }
+
+    /**
+     * Finishes the compactions of the state tables which failed during their swap, so the state is read without the
+     * rows of both the replaced and the compacted files. Runs whether or not the compaction is enabled now.
+     */
+    public static void recoverStateTables(final SparkSession sparkSession) {
+        StateCompactor compactor = new StateCompactor(sparkSession,
+                ContextUtil.getStateCompactFileCount(), ContextUtil.getStateCompactTargetFileSizeBytes());
+        for (String path : getCompactedStatePaths()) {
+            compactor.recover(path);
+        }
+    }
+
+    private static List<String> getCompactedStatePaths() {
+        List<String> paths = new ArrayList<>();
+        for (String tableName : new String[] {TABLE_ETL_USER_DEVICE_ID, TABLE_ETL_USER_PAGE_REFERER, TABLE_ETL_USER_TRAFFIC_SOURCE,
+                ETLRunner.TableName.USER.name, ETLRunner.TableName.ITEM.name}) {
+            for (String suffix : new String[] {INCREMENTAL_SUFFIX, FULL_SUFFIX}) {
+                paths.add(getPathForTable(tableName + suffix));
+            }
+        }
+        return paths;
+    }
+
     private static void mergeIncrementalTables(final SparkSession sparkSession) {
         boolean forceMerge = System.getProperty("force.merge", "false").equals("true");
 
@@ -732,29 +852,37 @@ public final class TransformerV2 {
 
         List<Object[]> l = new ArrayList<>();
         l.add(new Object[] {
-                TABLE_ETL_USER_DEVICE_ID, userKeepDays
+                TABLE_ETL_USER_DEVICE_ID, userKeepDays, (UnaryOperator<Dataset<Row>>) TransformerV2::getAggUserDeviceIdDataset
         });
         l.add(new Object[] {
-                TABLE_ETL_USER_PAGE_REFERER, userKeepDays
+                TABLE_ETL_USER_PAGE_REFERER, userKeepDays, (UnaryOperator<Dataset<Row>>) TransformerV2::getAggUserRefererDataset
         });
         l.add(new Object[] {
-                TABLE_ETL_USER_TRAFFIC_SOURCE, userKeepDays
+                TABLE_ETL_USER_TRAFFIC_SOURCE, userKeepDays, (UnaryOperator<Dataset<Row>>) TransformerV2::getAggTrafficSourceDataset
         });
         l.add(new Object[] {
-                ETLRunner.TableName.USER.name, userKeepDays
+                ETLRunner.TableName.USER.name, userKeepDays, (UnaryOperator<Dataset<Row>>) TransformerV2::getAggUserDataset
         });
         l.add(new Object[] {
-                ETLRunner.TableName.ITEM.name, itemKeepDays
+                ETLRunner.TableName.ITEM.name, itemKeepDays, (UnaryOperator<Dataset<Row>>) TransformerV2::getAggItemDataset
         });
 
         l.forEach(it -> {
             String tableName =(String) it[0];
             int nDays = (int) it[1];
+            @SuppressWarnings("unchecked")
+            UnaryOperator<Dataset<Row>> aggFunction = (UnaryOperator<Dataset<Row>>) it[2];
             log.info("start merge table: " + tableName);
+            // the incremental table has the state of last merge and the batches after it, merge them to one version per key
+            String pathIncremental = getPathForTable(tableName + INCREMENTAL_SUFFIX);
+            Dataset<Row> datasetIncremental = readDatasetFromPath(sparkSession, pathIncremental, nDays).drop(UPDATE_DATE);
             String pathFull = getPathForTable(tableName + FULL_SUFFIX);
+            overWriteDataset(pathFull, aggFunction.apply(datasetIncremental));
             Dataset<Row> datasetFull = readDatasetFromPath(sparkSession, pathFull, nDays);
-            String pathIncremental = getPathForTable(tableName + INCREMENTAL_SUFFIX);
             overWriteDataset(pathIncremental, datasetFull);
+            if (ETLRunner.TableName.USER.name.equals(tableName) && ContextUtil.isStateKeyIndexEnabled()) {
+                new StateKeyIndex(sparkSession, pathFull).rebuild(datasetFull);
+            }
         });
     }
 
@@ -796,7 +924,7 @@ public final class TransformerV2 {
             Dataset<Row> newState = sparkSession.createDataFrame(dataList, schema);
             newState.coalesce(1).write()
                     .partitionBy(UPDATE_DATE)
-                    .option(COMPRESSION, SNAPPY)
+                    .options(getParquetWriteOptions(statePath))
                     .mode(SaveMode.Append).parquet(statePath);
         }
 
@@ -13,6 +13,10 @@
 
 package software.aws.solution.clickstream;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SaveMode;
@@ -24,8 +28,11 @@ import org.apache.spark.sql.types.StructField;
 import ua_parser.Client;
 import ua_parser.Parser;
 
+import java.math.BigInteger;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.apache.spark.sql.functions.broadcast;
 import static org.apache.spark.sql.functions.col;
 import static org.apache.spark.sql.functions.udf;
 import static software.aws.solution.clickstream.ETLRunner.DEBUG_LOCAL_PATH;
@@ -37,29 +44,84 @@ import static software.aws.solution.clickstream.Transformer.UA_OS;
 import static software.aws.solution.clickstream.Transformer.UA_OS_VERSION;
 import static software.aws.solution.clickstream.Transformer.UA_DEVICE_CATEGORY;
 
+@Slf4j
 public class UAEnrichment {
 
+    public static final String UA_ENRICH_MODE_JOIN = "join";
+    private static final String UA = "ua";
+    private static final String UA_VALUE = "ua_value";
     private static final Parser UA_PARSER = new Parser();
+    private static final long CACHE_STATS_LOG_INTERVAL = 100_000L;
+    private static final AtomicLong CACHE_REQUEST_COUNT = new AtomicLong();
+    private static volatile Cache<String, Row> uaCache;
 
-    private static UDF1<String, Row> enrich() {
+    private static UDF1<String, Row> enrich(final int cacheSize) {
         return value -> {
-            Client client = UA_PARSER.parse(value);
-            String uaBrowser = Optional.ofNullable(client.userAgent).map(a -> a.family).orElse(null);
-            String uaBrowserVersion = Optional.ofNullable(client.userAgent)
-                    .map(a -> getVersion(a.major, a.major, a.patch)).orElse(null);
-
-            String uaOs = Optional.ofNullable(client.os).map(a -> a.family).orElse(null);
-            String uaOsVersion = Optional.ofNullable(client.os)
-                    .map(a -> getVersion(a.major, a.major, a.patch)).orElse(null);
-
-            String uaDevice = Optional.ofNullable(client.device).map(a -> a.family).orElse(null);
-            String uaDeviceCategory = null; // PC|Tablet|Mobile|Bot|Other
-            return new GenericRow(
-                    new String[]{uaBrowser, uaBrowserVersion, uaOs, uaOsVersion, uaDevice, uaDeviceCategory}
-            );
+            if (value == null || cacheSize <= 0) {
+                return parse(value);
+            }
+            Cache<String, Row> cache = getUaCache(cacheSize);
+            Row row = cache.getIfPresent(value);
+            if (row == null) {
+                row = parse(value);
+                cache.put(value, row);
+            }
+            if (CACHE_REQUEST_COUNT.incrementAndGet() % CACHE_STATS_LOG_INTERVAL == 0) {
+                logCacheStats(cache);
+            }
+            return row;
         };
     }
 
+    private static Row parse(final String value) {
+        Client client = UA_PARSER.parse(value);
+        String uaBrowser = Optional.ofNullable(client.userAgent).map(a -> a.family).orElse(null);
+        String uaBrowserVersion = Optional.ofNullable(client.userAgent)
+                .map(a -> getVersion(a.major, a.major, a.patch)).orElse(null);
+
+        String uaOs = Optional.ofNullable(client.os).map(a -> a.family).orElse(null);
+        String uaOsVersion = Optional.ofNullable(client.os)
+                .map(a -> getVersion(a.major, a.major, a.patch)).orElse(null);
+
+        String uaDevice = Optional.ofNullable(client.device).map(a -> a.family).orElse(null);
+        String uaDeviceCategory = null; // PC|Tablet|Mobile|Bot|Other
+        return new GenericRow(
+                new String[]{uaBrowser, uaBrowserVersion, uaOs, uaOsVersion, uaDevice, uaDeviceCategory}
+        );
+    }
+
+    /**
+     * One cache per executor JVM, shared by all tasks. The size of the first caller wins.
+     */
+    private static Cache<String, Row> getUaCache(final int cacheSize) {
+        Cache<String, Row> cache = uaCache;
+        if (cache == null) {
+            synchronized (UAEnrichment.class) {
+                cache = uaCache;
+                if (cache == null) {
+                    log.info("create ua cache, maximumSize: " + cacheSize);
+                    cache = CacheBuilder.newBuilder()
+                            .maximumSize(cacheSize)
+                            .recordStats()
+                            .build();
+                    uaCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    static CacheStats getCacheStats() {
+        Cache<String, Row> cache = uaCache;
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    private static void logCacheStats(final Cache<String, Row> cache) {
+        CacheStats stats = cache.stats();
+        log.info(String.format("[UAEnrichment] ua cache size: %d, hit: %d, miss: %d, eviction: %d, hit rate: %.4f",
+                cache.size(), stats.hitCount(), stats.missCount(), stats.evictionCount(), stats.hitRate()));
+    }
+
     private static String getVersion(final String major, final String minor, final String patch) {
         if (major != null && minor != null && patch != null) {
             return String.format("%s.%s.%s", major, minor, patch);
@@ -69,7 +131,9 @@ public class UAEnrichment {
     }
 
     public Dataset<Row> transform(final Dataset<Row> dataset) {
-        UserDefinedFunction udfEnrichUserAgent = udf(enrich(), DataTypes.createStructType(
+        int cacheSize = ContextUtil.getUaCacheSize();
+        log.info("ua cache size: " + cacheSize);
+        UserDefinedFunction udfEnrichUserAgent = udf(enrich(cacheSize), DataTypes.createStructType(
                 new StructField[]{
                         DataTypes.createStructField(UA_BROWSER, DataTypes.StringType, true),
                         DataTypes.createStructField(UA_BROWSER_VERSION, DataTypes.StringType, true),
@@ -81,9 +145,28 @@ public class UAEnrichment {
                         DataTypes.createStructField(UA_DEVICE_CATEGORY, DataTypes.StringType, true),
                 }
         ));
-        Dataset<Row> datasetUa = dataset.withColumn(UA_ENRICH, udfEnrichUserAgent.apply(col("ua")));
+        String enrichMode = ContextUtil.getUaEnrichMode();
+        log.info("ua enrich mode: " + enrichMode);
+        Dataset<Row> datasetUa;
+        if (UA_ENRICH_MODE_JOIN.equalsIgnoreCase(enrichMode)) {
+            // parse each distinct ua only once, then join the parsed result back to the events. Only the parsed
+            // distinct ua are persisted, the input is read again by the join from its own cache
+            Dataset<Row> distinctUaDataset = ContextUtil.persistDataset(dataset.select(col(UA).alias(UA_VALUE)).distinct()
+                    .withColumn(UA_ENRICH, udfEnrichUserAgent.apply(col(UA_VALUE))));
+            // the plan estimate is an upper bound, it is the size of the ua column of the input, no job is run for it;
+            // when it is over the threshold, AQE still broadcasts the distinct ua by their size at runtime
+            BigInteger distinctUaBytes = distinctUaDataset.queryExecution().optimizedPlan().stats().sizeInBytes().bigInteger();
+            long broadcastThreshold = dataset.sparkSession().sessionState().conf().autoBroadcastJoinThreshold();
+            boolean isBroadcast = distinctUaBytes.compareTo(BigInteger.valueOf(broadcastThreshold)) <= 0;
+            log.info("estimated distinct ua bytes: " + distinctUaBytes + ", broadcast: " + isBroadcast);
+            datasetUa = dataset.join(isBroadcast ? broadcast(distinctUaDataset) : distinctUaDataset,
+                    dataset.col(UA).eqNullSafe(distinctUaDataset.col(UA_VALUE)), "left")
+                    .drop(UA_VALUE);
+        } else {
+            datasetUa = dataset.withColumn(UA_ENRICH, udfEnrichUserAgent.apply(col(UA)));
+        }
 
-        Dataset<Row> enrichedDataset = datasetUa.withColumn("device", datasetUa.col("device")
+        Dataset<Row> enrichedDataset = datasetUa.withColumn("device", col("device")
                 .withField(UA_BROWSER, col(UA_ENRICH).getField(UA_BROWSER))
                 .withField(UA_BROWSER_VERSION, col(UA_ENRICH).getField(UA_BROWSER_VERSION))
                 .withField(UA_OS, col(UA_ENRICH).getField(UA_OS))
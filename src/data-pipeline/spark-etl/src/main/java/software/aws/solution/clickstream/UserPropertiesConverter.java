@@ -17,6 +17,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SaveMode;
@@ -28,12 +29,12 @@ import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
 import static org.apache.spark.sql.functions.col;
 import static org.apache.spark.sql.functions.udf;
-import static org.apache.spark.sql.functions.get_json_object;
 
 import static software.aws.solution.clickstream.ETLRunner.DEBUG_LOCAL_PATH;
 import static software.aws.solution.clickstream.KvConverter.getValueTypeResult;
@@ -45,30 +46,63 @@ import static software.aws.solution.clickstream.Transformer.STRING_VALUE;
 public class UserPropertiesConverter {
 
     public static final String VALUE = "value";
+    public static final String PARSED_USER = "_parsed_user";
+    private static final String USER_COL = "_user";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
-    private static UDF1<String, Row[]> convertJsonStringToKeyValue() {
+    private static UDF1<String, Row> convertUser() {
         return (String value) -> {
-            try {
-                return getUserPropertiesGenericRows(value);
-            } catch (Exception e) {
+            if (value == null) {
                 return null;
             }
-        };
-    }
-
-    private static UDF1<String, Row> convertUserLtv() {
-        return (String value) -> {
             try {
-                return getUserLtvGenericRow(value);
+                return getUserGenericRow(value);
             } catch (Exception e) {
                 return null;
             }
         };
     }
 
+    /**
+     * Parses the user json once and returns the user_properties, user_ltv, user_id and user_first_touch_timestamp
+     * fields together. Each field fails on its own as the separate UDFs and get_json_object calls did before.
+     */
+    static GenericRow getUserGenericRow(final String value) throws JsonProcessingException {
+        JsonNode jsonNode = OBJECT_MAPPER.readTree(value);
+        GenericRow[] userProperties = null;
+        try {
+            userProperties = getUserPropertiesGenericRows(jsonNode);
+        } catch (Exception e) {
+            log.debug("cannot convert user properties: " + e.getMessage());
+        }
+        GenericRow userLtv = null;
+        try {
+            userLtv = getUserLtvGenericRow(jsonNode);
+        } catch (Exception e) {
+            log.debug("cannot convert user ltv: " + e.getMessage());
+        }
+        return new GenericRow(new Object[]{
+                userProperties,
+                userLtv,
+                getUserPropertyValue(jsonNode, "_user_id"),
+                getUserPropertyValue(jsonNode, "_user_first_touch_timestamp"),
+        });
+    }
+
+    /**
+     * Same as get_json_object(user, '$.name.value'): a string as is, other values as json, null if missing.
+     */
+    private static String getUserPropertyValue(final JsonNode jsonNode, final String name) {
+        JsonNode valueNode = jsonNode.path(name).get(VALUE);
+        if (valueNode == null || valueNode.isNull()) {
+            return null;
+        }
+        return valueNode.isTextual() ? valueNode.textValue() : valueNode.toString();
+    }
+
     /**
      *
-     * @param value is a json string as below:
+     * @param jsonNode is the tree of a json string as below:
      *
      *  {
      *  "_user_id": {
@@ -97,13 +131,9 @@ public class UserPropertiesConverter {
      *  }
      *  }
      * @return ArrayType for StructType
-     * @throws JsonProcessingException
      */
 
-    private static GenericRow[] getUserPropertiesGenericRows(final String value) throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-
-        JsonNode jsonNode = objectMapper.readTree(value);
+    private static GenericRow[] getUserPropertiesGenericRows(final JsonNode jsonNode) {
         List<GenericRow> list = new ArrayList<>();
         for (Iterator<String> it = jsonNode.fieldNames(); it.hasNext();) {
             String attrName = it.next();
@@ -137,9 +167,7 @@ public class UserPropertiesConverter {
         return list.toArray(new GenericRow[]{});
     }
 
-    private static GenericRow getUserLtvGenericRow(final String value) throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        JsonNode jsonNode = objectMapper.readTree(value);
+    private static GenericRow getUserLtvGenericRow(final JsonNode jsonNode) {
         Double revenue = null;
         String currency = null;
 
@@ -165,8 +193,11 @@ public class UserPropertiesConverter {
         return null;
     }
 
-    public Dataset<Row> transform(final Dataset<Row> dataset) {
-
+    /**
+     * Parses the user json once to the struct of user_properties, user_ltv, user_id and user_first_touch_timestamp.
+     * A dataset with the struct in the PARSED_USER column is not parsed again by transform.
+     */
+    public static Column parseUser(final Column userColumn) {
         StructType valueType = DataTypes.createStructType(new StructField[]{
                 DataTypes.createStructField(DOUBLE_VALUE, DataTypes.DoubleType, true),
                 DataTypes.createStructField(FLOAT_VALUE, DataTypes.FloatType, true),
@@ -176,36 +207,42 @@ public class UserPropertiesConverter {
         });
 
 
-        UserDefinedFunction convertStringToKeyValueUdf = udf(convertJsonStringToKeyValue(), DataTypes.createArrayType(
-                DataTypes.createStructType(
-                        new StructField[]{
-                                DataTypes.createStructField("key", DataTypes.StringType, true),
-                                DataTypes.createStructField(VALUE, valueType, true),
-                        }
-                )));
-
-        UserDefinedFunction userLtvUdf = udf(convertUserLtv(),
-                DataTypes.createStructType(
+        UserDefinedFunction convertUserUdf = udf(convertUser(), DataTypes.createStructType(new StructField[]{
+                DataTypes.createStructField("user_properties", DataTypes.createArrayType(
+                        DataTypes.createStructType(
+                                new StructField[]{
+                                        DataTypes.createStructField("key", DataTypes.StringType, true),
+                                        DataTypes.createStructField(VALUE, valueType, true),
+                                }
+                        )), true),
+                DataTypes.createStructField("user_ltv", DataTypes.createStructType(
                         new StructField[]{
                                 DataTypes.createStructField("revenue", DataTypes.DoubleType, true),
                                 DataTypes.createStructField("currency", DataTypes.StringType, true),
                         }
-                ));
+                ), true),
+                DataTypes.createStructField("user_id", DataTypes.StringType, true),
+                DataTypes.createStructField("user_first_touch_timestamp", DataTypes.StringType, true),
+        }));
 
-        Dataset<Row> userDataset1 = dataset.withColumn("user_properties",
-                convertStringToKeyValueUdf.apply(dataset.col("data").getField("user")));
+        return convertUserUdf.apply(userColumn);
+    }
 
-        Dataset<Row> userDataset2 = userDataset1.withColumn("user_ltv",
-                userLtvUdf.apply(dataset.col("data").getField("user")));
+    public Dataset<Row> transform(final Dataset<Row> dataset) {
+        Column parsedUser = Arrays.asList(dataset.columns()).contains(PARSED_USER)
+                ? col(PARSED_USER) : parseUser(dataset.col("data").getField("user"));
+        Dataset<Row> userDataset1 = dataset.withColumn(USER_COL, parsedUser);
 
-        Dataset<Row> userDataset3 = userDataset2
-                .withColumn("user_id", get_json_object(col("data").getField("user"), "$._user_id.value"))
-                .withColumn("user_first_touch_timestamp",
-                        get_json_object(col("data").getField("user"), "$._user_first_touch_timestamp.value").cast(DataTypes.LongType));
+        Dataset<Row> userDataset2 = userDataset1
+                .withColumn("user_properties", col(USER_COL).getField("user_properties"))
+                .withColumn("user_ltv", col(USER_COL).getField("user_ltv"))
+                .withColumn("user_id", col(USER_COL).getField("user_id"))
+                .withColumn("user_first_touch_timestamp", col(USER_COL).getField("user_first_touch_timestamp").cast(DataTypes.LongType))
+                .drop(USER_COL, PARSED_USER);
 
         if (ContextUtil.isDebugLocal()) {
-            userDataset3.write().mode(SaveMode.Overwrite).json(DEBUG_LOCAL_PATH + "/UserPropertiesConverter/");
+            userDataset2.write().mode(SaveMode.Overwrite).json(DEBUG_LOCAL_PATH + "/UserPropertiesConverter/");
         }
-        return userDataset3;
+        return userDataset2;
     }
 }
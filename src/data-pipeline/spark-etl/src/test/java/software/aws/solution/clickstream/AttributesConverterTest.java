@@ -0,0 +1,85 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.util.Objects.requireNonNull;
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.get_json_object;
+import static org.apache.spark.sql.functions.not;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AttributesConverterTest extends BaseSparkTest {
+
+    @Test
+    public void should_parse_attributes_same_as_json_path() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.AttributesConverterTest.should_parse_attributes_same_as_json_path
+        Dataset<Row> dataset = spark.read().json(requireNonNull(getClass().getResource("/data_cleaned.json")).getPath());
+        assertSameAsJsonPath(dataset);
+
+        Dataset<Row> parsedDataset = new AttributesConverter().transform(dataset);
+        Row row = parsedDataset.select(AttributesConverter.getAttribute("_channel")).first();
+        assertEquals("C001", row.getString(0));
+    }
+
+    @Test
+    public void should_parse_attributes_of_any_value() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.AttributesConverterTest.should_parse_attributes_of_any_value
+        Dataset<Row> dataset = createDataset(
+                "{\"_channel\":\"C001\",\"_traffic_source_medium\":1,\"_traffic_source_name\":1.5,\"_traffic_source_source\":true}",
+                "{\"_page_referer\":{\"a\":[1,\"b\"]},\"_referer\":[1,2],\"_privacy_info_ads_storage\":\"\"}",
+                "{\"_channel\":\"a\\\"b\\u00e9\",\"other\":{\"_channel\":\"x\"}}",
+                "{}",
+                "[]",
+                "",
+                "not json",
+                null
+        );
+        assertSameAsJsonPath(dataset);
+        assertThrows(IllegalArgumentException.class, () -> AttributesConverter.getAttribute("_not_parsed"));
+    }
+
+    private void assertSameAsJsonPath(final Dataset<Row> dataset) {
+        Dataset<Row> parsedDataset = new AttributesConverter().transform(dataset);
+        for (String name : AttributesConverter.PARSED_ATTRIBUTE_NAMES) {
+            Dataset<Row> diff = parsedDataset.filter(not(AttributesConverter.getAttribute(name)
+                    .eqNullSafe(get_json_object(col("data").getField("attributes"), "$." + name))));
+            assertEquals(0, diff.count(), name);
+        }
+    }
+
+    private Dataset<Row> createDataset(final String... attributes) {
+        StructType schema = DataTypes.createStructType(new StructField[]{
+                DataTypes.createStructField("data", DataTypes.createStructType(new StructField[]{
+                        DataTypes.createStructField("attributes", DataTypes.StringType, true),
+                }), true),
+        });
+        List<Row> rows = Arrays.stream(attributes)
+                .map(a -> RowFactory.create(RowFactory.create(a)))
+                .collect(Collectors.toList());
+        return spark.createDataFrame(rows, schema);
+    }
+}
@@ -17,6 +17,11 @@ import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
 import static java.util.Objects.requireNonNull;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static software.aws.solution.clickstream.ContextUtil.*;
@@ -71,4 +76,28 @@ class CleanerTest extends BaseSparkTest {
         assertEquals(0, cleanedDataset.count());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void should_keep_line_breaks_when_decompress_multi_line_data() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.CleanerTest.should_keep_line_breaks_when_decompress_multi_line_data
+        String multiLineData = "[\n"
+                + "  {\"event_id\": \"e1\", \"app_id\": \"uba-app\"},\r\n"
+                + "  {\"event_id\": \"e2\", \"app_id\": \"uba-app\", \"name\": \"\u4e2d\u6587\"}\n"
+                + "]\n";
+        assertEquals(multiLineData, Cleaner.decompress(gzip(multiLineData)));
+
+        StringBuilder largeData = new StringBuilder("[");
+        for (int i = 0; i < 20000; i++) {
+            largeData.append(i == 0 ? "" : ",\n").append("{\"event_id\": \"").append(i).append("\"}");
+        }
+        largeData.append("]");
+        assertEquals(largeData.toString(), Cleaner.decompress(gzip(largeData.toString())));
+    }
+
+    private static byte[] gzip(final String data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+            gos.write(data.getBytes(StandardCharsets.UTF_8));
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Observation;
+import org.apache.spark.sql.Row;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+import static org.apache.spark.sql.functions.expr;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static software.aws.solution.clickstream.ContextUtil.DEBUG_METRICS_PROP;
+
+class ETLMetricTest extends BaseSparkTest {
+
+    @Test
+    public void should_count_rows_by_the_consuming_action() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.ETLMetricTest.should_count_rows_by_the_consuming_action
+        Dataset<Row> dataset = spark.read().json(requireNonNull(getClass().getResource("/transformed_data.json")).getPath());
+
+        Observation observation = new Observation("source");
+        Dataset<Row> countedDataset = ETLMetric.observeRowCount(dataset, observation);
+        assertFalse(countedDataset.queryExecution().optimizedPlan().toString().contains("UDF"));
+
+        List<Row> rows = countedDataset.collectAsList();
+        assertEquals(rows.size(), ETLMetric.getRowCount(observation));
+    }
+
+    @Test
+    public void should_observe_the_stage_count_without_debug_metrics() throws InterruptedException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.ETLMetricTest.should_observe_the_stage_count_without_debug_metrics
+        Dataset<Row> dataset = spark.read().json(requireNonNull(getClass().getResource("/transformed_data.json")).getPath());
+        Dataset<Row> observedDataset = ETLMetric.debugCount(dataset, "observed stage");
+        assertNotSame(dataset, observedDataset);
+        assertNull(ETLMetric.getStageCount("observed stage"));
+
+        long count = observedDataset.filter(expr("true")).count();
+        // the listener is called asynchronously after the action
+        for (int i = 0; i < 100 && ETLMetric.getStageCount("observed stage") == null; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(Long.valueOf(count), ETLMetric.getStageCount("observed stage"));
+    }
+
+    @Test
+    public void should_not_change_the_dataset_of_debug_count() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.ETLMetricTest.should_not_change_the_dataset_of_debug_count
+        Dataset<Row> dataset = spark.read().json(requireNonNull(getClass().getResource("/transformed_data.json")).getPath());
+        System.setProperty(DEBUG_METRICS_PROP, "true");
+        try {
+            assertSame(dataset, ETLMetric.debugCount(dataset, "source"));
+        } finally {
+            System.clearProperty(DEBUG_METRICS_PROP);
+        }
+    }
+}
@@ -15,6 +15,13 @@
 package software.aws.solution.clickstream;
 
 import com.clearspring.analytics.util.Lists;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.column.statistics.Statistics;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.hadoop.util.HadoopInputFile;
+import org.apache.parquet.io.api.Binary;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.junit.jupiter.api.Assertions;
@@ -24,8 +31,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static java.util.Objects.requireNonNull;
@@ -54,6 +64,59 @@ class ETLRunnerTest extends BaseSparkTest {
 
         Dataset<Row> dataset = runner.readInputDataset(false);
         assertEquals(9, dataset.count());
+        assertEquals(3, ETLRunner.getInputFiles(dataset).size());
+    }
+
+    @Test
+    public void should_get_source_prefix_paths_with_hour_pruning() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.ETLRunnerTest.should_get_source_prefix_paths_with_hour_pruning
+        long startTimestamp = 1667963966000L; // 2022-11-09T03:19:26.000Z
+        long endTimestamp = 1668136766000L; // 2022-11-11T03:19:26.000Z
+
+        List<String> paths = ETLRunner.getSourcePrefixPaths("s3://bucket/src/", startTimestamp, endTimestamp);
+
+        assertEquals(22 + 1 + 4, paths.size());
+        assertEquals("s3://bucket/src/year=2022/month=11/day=09/hour=02", paths.get(0));
+        assertEquals("s3://bucket/src/year=2022/month=11/day=09/hour=23", paths.get(21));
+        assertEquals("s3://bucket/src/year=2022/month=11/day=10", paths.get(22));
+        assertEquals("s3://bucket/src/year=2022/month=11/day=11/hour=00", paths.get(23));
+        assertEquals("s3://bucket/src/year=2022/month=11/day=11/hour=03", paths.get(26));
+    }
+
+    @Test
+    public void should_read_dataset_by_source_prefix() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.ETLRunnerTest.should_read_dataset_by_source_prefix
+        System.setProperty(SOURCE_LIST_MODE_PROP, ETLRunner.SOURCE_LIST_MODE_PREFIX);
+        Path partitionData = Paths.get(requireNonNull(getClass().getResource("/original_data.json")).getPath())
+                .getParent().resolve("partition_data/year=2022/month=11");
+        Path sourceDir = Paths.get("/tmp/test-source-prefix/" + new Date().getTime());
+        copyToHourPartition(partitionData.resolve("day=09/original_data.json"), sourceDir, "day=09/hour=02");
+        copyToHourPartition(partitionData.resolve("day=10/original_data.json"), sourceDir, "day=10/hour=10");
+        copyToHourPartition(partitionData.resolve("day=11/corrupt_data.json"), sourceDir, "day=11/hour=03");
+        // out of the time range, pruned by hour
+        copyToHourPartition(partitionData.resolve("day=09/original_data.json"), sourceDir, "day=11/hour=05");
+
+        List<String> transformers = Lists.newArrayList();
+        transformers.add("software.aws.solution.clickstream.Transformer");
+        String startTimestamp = "1667963966000"; // 2022-11-09T03:19:26.000Z
+        String endTimestamp = "1668136766000"; // 2022-11-11T03:19:26.000Z
+        ETLRunnerConfig config = getRunnerConfig(transformers, "read_dataset_by_source_prefix",
+                sourceDir + "/", startTimestamp, endTimestamp);
+        ETLRunner runner = new ETLRunner(spark, config);
+        try {
+            Dataset<Row> dataset = runner.readInputDataset(false);
+            assertEquals(9, dataset.count());
+            assertEquals(2, dataset.filter(expr("hour = 2")).count());
+            assertFalse(Arrays.asList(dataset.columns()).contains("day"));
+        } finally {
+            System.clearProperty(SOURCE_LIST_MODE_PROP);
+        }
+    }
+
+    private static void copyToHourPartition(final Path file, final Path sourceDir, final String dayHour) throws IOException {
+        Path target = sourceDir.resolve("year=2022/month=11/" + dayHour);
+        Files.createDirectories(target);
+        Files.copy(file, target.resolve(file.getFileName()));
     }
 
     @Test
@@ -77,8 +140,10 @@ class ETLRunnerTest extends BaseSparkTest {
 
         Dataset<Row> dataset = runner.readInputDataset(true);
         assertEquals(0, dataset.count());
+        assertEquals(0, ETLRunner.getInputFiles(dataset).size());
         dataset = runner.readInputDataset(false);
         assertEquals(2, dataset.count());
+        assertEquals(1, ETLRunner.getInputFiles(dataset).size());
     }
 
 
@@ -135,12 +200,117 @@ class ETLRunnerTest extends BaseSparkTest {
         Row row = dataset.first();
         assertEquals(111L, row.getLong(row.fieldIndex("event_bundle_sequence_id")));
         String outPath = "/tmp/test-spark-etl/" + new Date().getTime();
-        runner.writeResult(outPath, dataset, ETLRunner.TableName.ODS_EVENTS);
+        long resultCount = runner.writeResult(outPath, dataset, ETLRunner.TableName.ODS_EVENTS);
+        assertEquals(dataset.count(), resultCount);
         assertTrue(Paths.get(outPath, "ods_events/partition_app=uba-app/partition_year=2023" +
                         "/partition_month=04/partition_day=24")
                 .toFile().isDirectory());
     }
 
+    @Test
+    public void should_write_result_by_target_file_size() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.ETLRunnerTest.should_write_result_by_target_file_size
+        System.setProperty(OUTPUT_TARGET_FILE_SIZE_MB_PROP, "128");
+        List<String> transformers = Lists.newArrayList();
+        transformers.add("software.aws.solution.clickstream.Transformer");
+        ETLRunner runner = new ETLRunner(spark, getRunnerConfig(transformers, "target_file_size"));
+        Dataset<Row> dataset = spark.sql("select 'uba-app' as app_id, cast('2023-04-24' as date) as event_date, id from range(1000)")
+                .repartition(20);
+
+        String outPath = "/tmp/test-spark-etl/" + new Date().getTime();
+        String advisorySizeConf = "spark.sql.adaptive.advisoryPartitionSizeInBytes";
+        spark.conf().set(advisorySizeConf, "1m");
+        Path partitionDir = Paths.get(outPath, "ods_events/partition_app=uba-app/partition_year=2023/partition_month=04/partition_day=24");
+        try {
+            long resultCount = runner.writeResult(outPath, dataset, ETLRunner.TableName.ODS_EVENTS);
+            assertEquals(1000, resultCount);
+            // the write does not change the session conf
+            assertEquals("1m", spark.conf().get(advisorySizeConf));
+            try (Stream<Path> files = Files.list(partitionDir)) {
+                // 20 small input partitions are written into one file
+                assertEquals(1, files.filter(f -> f.getFileName().toString().startsWith("part-")).count());
+            }
+
+            // a bucket over the target size is split into more files
+            System.setProperty(OUTPUT_TARGET_FILE_SIZE_MB_PROP, "1");
+            String bigOutPath = outPath + "_big";
+            assertEquals(200000, runner.writeResult(bigOutPath,
+                    spark.sql("select 'uba-app' as app_id, cast('2023-04-24' as date) as event_date, id from range(200000)"),
+                    ETLRunner.TableName.ODS_EVENTS));
+            try (Stream<Path> files = Files.list(Paths.get(bigOutPath,
+                    "ods_events/partition_app=uba-app/partition_year=2023/partition_month=04/partition_day=24"))) {
+                assertTrue(files.filter(f -> f.getFileName().toString().startsWith("part-")).count() > 1);
+            }
+        } finally {
+            System.clearProperty(OUTPUT_TARGET_FILE_SIZE_MB_PROP);
+            spark.conf().unset(advisorySizeConf);
+        }
+    }
+
+    @Test
+    public void should_prune_more_row_groups_when_output_is_sorted() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.ETLRunnerTest.should_prune_more_row_groups_when_output_is_sorted
+        spark.sparkContext().hadoopConfiguration().setInt("parquet.block.size", 16 * 1024);
+        List<String> transformers = Lists.newArrayList();
+        transformers.add("software.aws.solution.clickstream.Transformer");
+        ETLRunnerConfig config = getRunnerConfig(transformers, "sorted_output",
+                getClass().getResource("/original_data.json").getPath(), "1667963966000", "1668136766000", "parquet");
+        ETLRunner runner = new ETLRunner(spark, config);
+        Dataset<Row> dataset = spark.sql("select 'uba-app' as app_id, cast('2023-04-24' as date) as event_date,"
+                + " concat('event_', cast(id % 20 as string)) as event_name, uuid() as user_pseudo_id, id as event_timestamp"
+                + " from range(20000)").repartition(1);
+        String partitionPart = "ods_events/partition_app=uba-app/partition_year=2023/partition_month=04/partition_day=24";
+
+        String unsortedPath = "/tmp/test-spark-etl/unsorted-" + new Date().getTime();
+        runner.writeResult(unsortedPath, dataset, ETLRunner.TableName.ODS_EVENTS);
+        String sortedPath = "/tmp/test-spark-etl/sorted-" + new Date().getTime();
+        System.setProperty(OUTPUT_SORT_COLUMNS_PROP, "event_name,user_pseudo_id,event_timestamp");
+        try {
+            runner.writeResult(sortedPath, dataset, ETLRunner.TableName.ODS_EVENTS);
+        } finally {
+            System.clearProperty(OUTPUT_SORT_COLUMNS_PROP);
+        }
+
+        // row groups to read for: where event_name = 'event_7'
+        long[] unsorted = countRowGroups(Paths.get(unsortedPath, partitionPart), "event_name", "event_7");
+        long[] sorted = countRowGroups(Paths.get(sortedPath, partitionPart), "event_name", "event_7");
+        System.out.printf("unsorted: %d/%d row groups read, sorted: %d/%d row groups read%n",
+                unsorted[0], unsorted[1], sorted[0], sorted[1]);
+        assertTrue(unsorted[1] > 1);
+        assertEquals(unsorted[1], unsorted[0]);
+        assertTrue(sorted[0] * 5 < sorted[1]);
+    }
+
+    /**
+     * @return {row groups whose min/max contains the value, all row groups}
+     */
+    private long[] countRowGroups(Path dir, String column, String value) throws IOException {
+        Configuration conf = spark.sparkContext().hadoopConfiguration();
+        long matched = 0;
+        long total = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".parquet")).collect(Collectors.toList())) {
+                try (ParquetFileReader reader = ParquetFileReader.open(
+                        HadoopInputFile.fromPath(new org.apache.hadoop.fs.Path(file.toUri()), conf))) {
+                    for (BlockMetaData block : reader.getFooter().getBlocks()) {
+                        total++;
+                        for (ColumnChunkMetaData chunk : block.getColumns()) {
+                            if (chunk.getPath().toDotString().equals(column)) {
+                                Statistics<?> stats = chunk.getStatistics();
+                                String min = ((Binary) stats.genericGetMin()).toStringUsingUTF8();
+                                String max = ((Binary) stats.genericGetMax()).toStringUsingUTF8();
+                                if (min.compareTo(value) <= 0 && max.compareTo(value) >= 0) {
+                                    matched++;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return new long[]{matched, total};
+    }
+
     private void checkSchema(Dataset<Row> dataset) throws IOException {
         dataset.printSchema();
         System.out.println(dataset.schema().toDDL());
@@ -261,6 +431,7 @@ class ETLRunnerTest extends BaseSparkTest {
         String partitionPart = "partition_app=uba-app/partition_year=2023/partition_month=04/partition_day=24";
         String expectedJson = this.resourceFileAsString("/expected/etl_runner_v2_event1.json");
         Assertions.assertEquals(expectedJson, dataset.first().prettyJson());
+        runner.writeResultDataset(dataset);
         Path p1 = Paths.get(outputPath, "user", partitionPart);
         Assertions.assertTrue(p1.toFile().isDirectory());
         Path p2 = Paths.get(outputPath, "event_parameter", partitionPart);
@@ -393,6 +564,43 @@ class ETLRunnerTest extends BaseSparkTest {
 
 
 
+    @Test
+    public void should_write_state_sinks_before_force_merge() {
+        // DOWNLOAD_FILE=1 ./gradlew clean test --info --tests software.aws.solution.clickstream.ETLRunnerTest.should_write_state_sinks_before_force_merge
+        System.setProperty(APP_IDS_PROP, "uba-app");
+        System.setProperty(PROJECT_ID_PROP, "test_project_id_01");
+        System.setProperty(WAREHOUSE_DIR_PROP, "/tmp/warehouse_merge_before_write/" + System.currentTimeMillis());
+
+        spark.sparkContext().addFile(requireNonNull(getClass().getResource("/GeoLite2-City.mmdb")).getPath());
+        List<String> transformers = Lists.newArrayList();
+        transformers.add("software.aws.solution.clickstream.TransformerV2");
+        transformers.add("software.aws.solution.clickstream.UAEnrichment");
+        transformers.add("software.aws.solution.clickstream.IPEnrichment");
+        String sourcePath = requireNonNull(getClass().getResource("/original_data_with_user_profile_set2.json")).getPath();
+
+        ETLRunnerConfig config1 = getRunnerConfig(transformers, "merge_before_write_1");
+        ETLRunner runner1 = new ETLRunner(spark, config1);
+        runner1.writeResultDataset(runner1.executeTransformers(spark.read().json(sourcePath), transformers));
+
+        // the state tables of the first run are merged and compacted by the postWrite of the second run, after all its sinks are written
+        System.setProperty("force.merge", "true");
+        System.setProperty(STATE_COMPACT_FILE_COUNT_PROP, "2");
+        try {
+            ETLRunnerConfig config2 = getRunnerConfig(transformers, "merge_before_write_2");
+            ETLRunner runner2 = new ETLRunner(spark, config2);
+            runner2.writeResultDataset(runner2.executeTransformers(spark.read().json(sourcePath), transformers));
+
+            String outputPath = config2.getOutputPath();
+            Dataset<Row> userDataset = spark.read().json(outputPath + ETLRunner.TableName.USER.name);
+            assertEquals(1, userDataset.filter(expr("user_pseudo_id='uuid1-9844af32'")).count());
+            assertTrue(spark.read().json(outputPath + ETLRunner.TableName.ITEM.name).count() > 0);
+            assertEquals(4, spark.read().json(outputPath + ETLRunner.TableName.EVENT.name).count());
+        } finally {
+            System.setProperty("force.merge", "false");
+            System.clearProperty(STATE_COMPACT_FILE_COUNT_PROP);
+        }
+    }
+
     @Test
     public void should_executeTransformers_with_TransformerV2_with_empty_user() throws IOException {
         // DOWNLOAD_FILE=1 ./gradlew clean test --info --tests software.aws.solution.clickstream.ETLRunnerTest.should_executeTransformers_with_TransformerV2_with_empty_user
@@ -481,6 +689,11 @@ class ETLRunnerTest extends BaseSparkTest {
 
     public ETLRunnerConfig getRunnerConfig(List<String> transformers, String name, String sourcePath,
                                            String startTimestamp, String endTimestamp) {
+        return getRunnerConfig(transformers, name, sourcePath, startTimestamp, endTimestamp, "json");
+    }
+
+    public ETLRunnerConfig getRunnerConfig(List<String> transformers, String name, String sourcePath,
+                                           String startTimestamp, String endTimestamp, String outPutFormat) {
         String database = "default";
         String sourceTable = "fakeSourceTable";
         String jobDataDir = "/tmp/etl-debug/";
@@ -488,7 +701,6 @@ class ETLRunnerTest extends BaseSparkTest {
         String outputPath = "/tmp/test-output/" + name + new Date().getTime() + "/";
         String projectId = "projectId1";
         String validAppIds = "id1,id2,uba-app";
-        String outPutFormat = "json";
         String dataFreshnessInHour = "72";
         int nDaysUser = 360 * 30;
         int nDaysItem = 360 * 30;
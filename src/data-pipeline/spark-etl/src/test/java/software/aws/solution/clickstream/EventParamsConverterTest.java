@@ -15,12 +15,23 @@ package software.aws.solution.clickstream;
 
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
 import org.junit.jupiter.api.Test;
 import scala.collection.Iterator;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
 import static java.util.Objects.requireNonNull;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static software.aws.solution.clickstream.ContextUtil.DEBUG_LOCAL_PROP;
+import static software.aws.solution.clickstream.ContextUtil.KV_CONVERT_MODE_PROP;
 
 public class EventParamsConverterTest extends BaseSparkTest {
 
@@ -57,4 +68,64 @@ public class EventParamsConverterTest extends BaseSparkTest {
 
         assertEquals(1, converteDataset.count());
     }
+
+    @Test
+    public void should_convert_attributes_data_by_catalyst_same_as_udf() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.EventParamsConverterTest.should_convert_attributes_data_by_catalyst_same_as_udf
+        EventParamsConverter transformer = new EventParamsConverter();
+        Dataset<Row> dataset = spark.read().json(requireNonNull(getClass().getResource("/data_cleaned.json")).getPath());
+
+        System.setProperty(KV_CONVERT_MODE_PROP, KvConverter.KV_CONVERT_MODE_UDF);
+        Dataset<Row> udfDataset = transformer.transform(dataset).select("event_params");
+        System.setProperty(KV_CONVERT_MODE_PROP, KvConverter.KV_CONVERT_MODE_CATALYST);
+        Dataset<Row> catalystDataset = transformer.transform(dataset).select("event_params");
+        System.clearProperty(KV_CONVERT_MODE_PROP);
+
+        assertEquals(udfDataset.schema(), catalystDataset.schema());
+        assertEquals(udfDataset.collectAsList(), catalystDataset.collectAsList());
+        assertFalse(catalystDataset.queryExecution().executedPlan().toString().contains("UDF"));
+
+        // a duplicated key keeps its first position with its last value, the floats are the same double values
+        List<String> sameAttributes = Arrays.asList(
+                "{\"a\":1,\"b\":2,\"a\":\"3\"}",
+                "{\"a\":1,\"a\":2,\"a\":1.5}",
+                "{\"f\":1.50,\"g\":2.0,\"h\":1e3,\"i\":-1.5}",
+                "{}",
+                "not json"
+        );
+        assertEquals(convertAttributes(sameAttributes, KvConverter.KV_CONVERT_MODE_UDF),
+                convertAttributes(sameAttributes, KvConverter.KV_CONVERT_MODE_CATALYST));
+        List<Row> duplicatedKeyParams = convertAttributes(sameAttributes.subList(0, 1), KvConverter.KV_CONVERT_MODE_CATALYST)
+                .get(0).getList(0);
+        assertEquals(2, duplicatedKeyParams.size());
+        assertEquals("a", duplicatedKeyParams.get(0).getString(0));
+        assertEquals(3L, duplicatedKeyParams.get(0).getStruct(1).getLong(2));
+        assertEquals("b", duplicatedKeyParams.get(1).getString(0));
+
+        // a nested value is its json text, and a json not object is null
+        List<String> differentAttributes = Arrays.asList("{\"n\":{\"x\":[1]}}", "[1,2]");
+        List<Row> udfRows = convertAttributes(differentAttributes, KvConverter.KV_CONVERT_MODE_UDF);
+        List<Row> catalystRows = convertAttributes(differentAttributes, KvConverter.KV_CONVERT_MODE_CATALYST);
+        assertEquals("", ((Row) udfRows.get(0).getList(0).get(0)).getStruct(1).getString(3));
+        assertEquals("{\"x\":[1]}", ((Row) catalystRows.get(0).getList(0).get(0)).getStruct(1).getString(3));
+        assertEquals(0, udfRows.get(1).getList(0).size());
+        assertTrue(catalystRows.get(1).isNullAt(0));
+    }
+
+    private List<Row> convertAttributes(final List<String> attributes, final String convertMode) {
+        StructType schema = DataTypes.createStructType(new StructField[]{
+                DataTypes.createStructField("data", DataTypes.createStructType(new StructField[]{
+                        DataTypes.createStructField("attributes", DataTypes.StringType, true),
+                }), true),
+        });
+        List<Row> rows = attributes.stream()
+                .map(a -> RowFactory.create(RowFactory.create(a)))
+                .collect(Collectors.toList());
+        System.setProperty(KV_CONVERT_MODE_PROP, convertMode);
+        try {
+            return new EventParamsConverter().transform(spark.createDataFrame(rows, schema)).select("event_params").collectAsList();
+        } finally {
+            System.clearProperty(KV_CONVERT_MODE_PROP);
+        }
+    }
 }
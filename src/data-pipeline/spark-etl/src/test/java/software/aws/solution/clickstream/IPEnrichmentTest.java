@@ -19,6 +19,7 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.List;
 
 import static java.util.Objects.requireNonNull;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -88,4 +89,48 @@ class IPEnrichmentTest extends BaseSparkTest {
         String expectedJson = this.resourceFileAsString("/expected/ip_enrich_data_v2.json");
         Assertions.assertEquals(expectedJson, transformedDataset.first().prettyJson());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void should_open_geo_reader_once_for_all_rows() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.IPEnrichmentTest.should_open_geo_reader_once_for_all_rows
+        spark.sparkContext().addFile(requireNonNull(getClass().getResource("/GeoLite2-City.mmdb")).getPath());
+
+        Dataset<Row> dataset = spark.read().json(requireNonNull(getClass().getResource("/transformed_data.json")).getPath());
+        int openedCountBefore = IPEnrichment.getOpenedReaderCount();
+
+        List<Row> rows = ipEnrichment.transform(dataset).collectAsList();
+        ipEnrichment.transform(dataset).collectAsList();
+
+        assertEquals(2, rows.size());
+        assertEquals(1, IPEnrichment.getOpenedReaderCount() - openedCountBefore);
+        rows.forEach(row -> {
+            Row geo = row.getStruct(row.fieldIndex("geo"));
+            assertEquals("Singapore", geo.getString(geo.fieldIndex("country")));
+        });
+    }
+
+    @Test
+    public void should_enrich_ip_by_partition() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.IPEnrichmentTest.should_enrich_ip_by_partition
+        spark.sparkContext().addFile(requireNonNull(getClass().getResource("/GeoLite2-City.mmdb")).getPath());
+
+        Dataset<Row> dataset = spark.read().json(requireNonNull(getClass().getResource("/transformed_data_v2.json")).getPath());
+        Dataset<Row> udfDataset = ipEnrichment.transform(dataset);
+
+        System.setProperty(IP_ENRICH_MODE_PROP, IPEnrichment.IP_ENRICH_MODE_PARTITION);
+        try {
+            Dataset<Row> partitionDataset = ipEnrichment.transform(dataset);
+            assertEquals(udfDataset.schema(), partitionDataset.schema());
+            String expectedJson = this.resourceFileAsString("/expected/ip_enrich_data_v2.json");
+            Assertions.assertEquals(expectedJson, partitionDataset.first().prettyJson());
+
+            // the ips evicted from the cache are resolved again
+            System.setProperty(IP_CACHE_SIZE_PROP, "1");
+            Dataset<Row> evictedDataset = ipEnrichment.transform(dataset);
+            assertEquals(udfDataset.select("geo").collectAsList(), evictedDataset.select("geo").collectAsList());
+        } finally {
+            System.clearProperty(IP_ENRICH_MODE_PROP);
+            System.clearProperty(IP_CACHE_SIZE_PROP);
+        }
+    }
+}
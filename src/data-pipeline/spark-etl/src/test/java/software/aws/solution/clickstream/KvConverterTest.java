@@ -0,0 +1,108 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.apache.spark.sql.catalyst.expressions.GenericRow;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import software.aws.solution.clickstream.KvTypeDictionary.ValueType;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+class KvConverterTest {
+
+    @Test
+    public void should_convert_same_as_json_tree() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.KvConverterTest.should_convert_same_as_json_tree
+        List<String> values = Arrays.asList(
+                "{\"_session_id\":\"see000201912dk\",\"_session_start_timestamp\":1667877566697,\"_session_duration\":690000,"
+                        + "\"_screen_name\":\"MainActivity\",\"price\":\"12.5\",\"score\":\"3.\",\"ratio\":0.25,\"big\":1e10}",
+                "{\"a\":1,\"b\":2,\"a\":\"3\"}",
+                "{\"obj\":{\"x\":[1,{\"y\":2}]},\"arr\":[1,2],\"t\":true,\"f\":false,\"n\":null,\"neg\":-0,\"huge\":123456789012345678901234}",
+                "{\"digits\":\"0123\",\"not_digits\":\"12a\",\"dots\":\"1.2.3\",\"lead_dot\":\".5\",\"unicode\":\"\\u0661\\u0662\",\"empty\":\"\"}",
+                "{\"item_id\":\"123\",\"quantity\":\"5\",\"excluded\":\"x\"}",
+                "{\"overflow\":\"99999999999999999999\"}",
+                "{\"price\":\"free\"}",
+                "{}",
+                "[1,2]",
+                "123",
+                "",
+                "{\"a\":1} trailing",
+                "{\"a\":",
+                "not json"
+        );
+        List<String> excludeAttributes = Collections.singletonList("excluded");
+        for (String value : values) {
+            Assertions.assertEquals(convertByTree(value, excludeAttributes), convert(value, excludeAttributes), value);
+        }
+        Assertions.assertEquals(convertByTree(null, excludeAttributes), convert(null, excludeAttributes));
+    }
+
+    @Test
+    public void should_classify_value_type() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.KvConverterTest.should_classify_value_type
+        Assertions.assertEquals(Long.valueOf(123L), KvConverter.getValueTypeResult("count", "123").longValue);
+        Assertions.assertEquals(Double.valueOf(1.0), KvConverter.getValueTypeResult("ratio", "1.").doubleValue);
+        Assertions.assertEquals(Double.valueOf(1.25), KvConverter.getValueTypeResult("ratio", "1.25").doubleValue);
+        Assertions.assertEquals(".25", KvConverter.getValueTypeResult("ratio", ".25").stringValue);
+        Assertions.assertEquals("", KvConverter.getValueTypeResult("name", "").stringValue);
+        Assertions.assertEquals("123", KvConverter.getValueTypeResult("user_id", "123").stringValue);
+        Assertions.assertEquals(Double.valueOf(10.0), KvConverter.getValueTypeResult("price", "10").doubleValue);
+    }
+
+    @Test
+    public void should_convert_by_known_value_type() throws Exception {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.KvConverterTest.should_convert_by_known_value_type
+        Assertions.assertEquals("123", KvConverter.getValueTypeResult("name", "123", ValueType.STRING).stringValue);
+        Assertions.assertEquals(Double.valueOf(5.0), KvConverter.getValueTypeResult("ratio", "5", ValueType.DOUBLE).doubleValue);
+        Assertions.assertEquals(Double.valueOf(5.5), KvConverter.getValueTypeResult("ratio", "5.5", ValueType.DOUBLE).doubleValue);
+        Assertions.assertEquals(Long.valueOf(5L), KvConverter.getValueTypeResult("count", "5", ValueType.INT).longValue);
+        // the values not fitting the known type are detected
+        Assertions.assertEquals(Double.valueOf(5.5), KvConverter.getValueTypeResult("count", "5.5", ValueType.INT).doubleValue);
+        Assertions.assertEquals("abc", KvConverter.getValueTypeResult("count", "abc", ValueType.INT).stringValue);
+        Assertions.assertEquals("abc", KvConverter.getValueTypeResult("ratio", "abc", ValueType.DOUBLE).stringValue);
+        Assertions.assertEquals(Long.valueOf(Long.MAX_VALUE),
+                KvConverter.getValueTypeResult("count", String.valueOf(Long.MAX_VALUE), ValueType.INT).longValue);
+        // price and the ids keep their types
+        Assertions.assertEquals(Double.valueOf(10.0), KvConverter.getValueTypeResult("price", "10", ValueType.STRING).doubleValue);
+        Assertions.assertEquals("123", KvConverter.getValueTypeResult("user_id", "123", ValueType.INT).stringValue);
+
+        Map<String, ValueType> keyTypes = new HashMap<>();
+        keyTypes.put("a", ValueType.STRING);
+        keyTypes.put("b", ValueType.DOUBLE);
+        GenericRow[] rows = KvConverter.getGenericRows("{\"a\":1,\"b\":2,\"c\":3}", Collections.emptySet(), keyTypes);
+        Assertions.assertEquals("[[a,[null,null,null,1]], [b,[2.0,null,null,null]], [c,[null,null,3,null]]]", Arrays.toString(rows));
+    }
+
+    private static String convert(final String value, final List<String> excludeAttributes) {
+        try {
+            return Arrays.toString(KvConverter.getGenericRows(value, new HashSet<>(excludeAttributes)));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static String convertByTree(final String value, final List<String> excludeAttributes) {
+        try {
+            return Arrays.toString(LegacyKvConverter.getGenericRows(value, excludeAttributes));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
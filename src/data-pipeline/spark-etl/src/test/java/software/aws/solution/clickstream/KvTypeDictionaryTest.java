@@ -0,0 +1,102 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.jupiter.api.Test;
+import software.aws.solution.clickstream.KvTypeDictionary.ValueType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.apache.spark.sql.functions.col;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KvTypeDictionaryTest extends BaseSparkTest {
+
+    @Test
+    public void should_learn_and_widen_value_types() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.KvTypeDictionaryTest.should_learn_and_widen_value_types
+        KvTypeDictionary dictionary = new KvTypeDictionary(spark,
+                "/tmp/test-kv-type-dictionary/" + System.currentTimeMillis() + "/" + KvTypeDictionary.DICTIONARY_DIR);
+        assertTrue(dictionary.load().isEmpty());
+
+        learn(dictionary, "app1:{\"count\":1,\"ratio\":\"1.5\",\"name\":\"a\"}", "app1:{\"count\":2,\"ratio\":2}", "app2:{\"count\":\"x\"}");
+        HashMap<String, HashMap<String, ValueType>> keyTypes = dictionary.load();
+        assertEquals(ValueType.INT, keyTypes.get("app1").get("count"));
+        assertEquals(ValueType.DOUBLE, keyTypes.get("app1").get("ratio"));
+        assertEquals(ValueType.STRING, keyTypes.get("app1").get("name"));
+        assertEquals(ValueType.STRING, keyTypes.get("app2").get("count"));
+
+        // the batch is learned before it is converted, so it is converted by the widened types
+        Dataset<Row> converted = learn(dictionary, "app1:{\"count\":\"1.5\",\"ratio\":3,\"name\":4}", "app2:{\"count\":5}");
+        List<String> values = converted.select(col("app_id"), col("event_params").getItem(0).getField("value"))
+                .collectAsList().stream()
+                .map(Row::toString)
+                .sorted()
+                .collect(Collectors.toList());
+        assertEquals(Arrays.asList("[app1,[1.5,null,null,null]]", "[app2,[null,null,null,5]]"), values);
+        keyTypes = dictionary.load();
+        assertEquals(ValueType.DOUBLE, keyTypes.get("app1").get("count"));
+        assertEquals(ValueType.DOUBLE, keyTypes.get("app1").get("ratio"));
+        assertEquals(ValueType.STRING, keyTypes.get("app1").get("name"));
+        assertEquals(ValueType.STRING, keyTypes.get("app2").get("count"));
+    }
+
+    @Test
+    public void should_not_learn_new_keys_of_an_app_over_the_cap() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.KvTypeDictionaryTest.should_not_learn_new_keys_of_an_app_over_the_cap
+        KvTypeDictionary dictionary = new KvTypeDictionary(spark,
+                "/tmp/test-kv-type-dictionary/" + System.currentTimeMillis() + "/" + KvTypeDictionary.DICTIONARY_DIR);
+
+        learn(dictionary, 2, "app1:{\"a\":1,\"b\":2}", "app2:{\"a\":1}");
+        learn(dictionary, 2, "app1:{\"a\":\"x\",\"c\":3}", "app2:{\"c\":3}");
+        HashMap<String, HashMap<String, ValueType>> keyTypes = dictionary.load();
+        // the new key of app1 at the cap is not learned, its known key is still widened
+        assertEquals(2, keyTypes.get("app1").size());
+        assertFalse(keyTypes.get("app1").containsKey("c"));
+        assertEquals(ValueType.STRING, keyTypes.get("app1").get("a"));
+        assertEquals(ValueType.INT, keyTypes.get("app2").get("c"));
+    }
+
+    private Dataset<Row> learn(final KvTypeDictionary dictionary, final String... events) {
+        return learn(dictionary, Integer.MAX_VALUE, events);
+    }
+
+    private Dataset<Row> learn(final KvTypeDictionary dictionary, final int maxKeysPerApp, final String... events) {
+        StructType schema = DataTypes.createStructType(new StructField[]{
+                DataTypes.createStructField("app_id", DataTypes.StringType, false),
+                DataTypes.createStructField("attributes", DataTypes.StringType, false),
+        });
+        List<Row> rows = new ArrayList<>();
+        for (String event : events) {
+            int sep = event.indexOf(':');
+            rows.add(RowFactory.create(event.substring(0, sep), event.substring(sep + 1)));
+        }
+        Dataset<Row> dataset = spark.createDataFrame(rows, schema);
+        HashMap<String, HashMap<String, ValueType>> keyTypes = dictionary.learn(dataset, col("app_id"), col("attributes"),
+                new ArrayList<>(), 1.0, maxKeysPerApp);
+        return new KvConverter().transform(dataset, col("attributes"), col("app_id"), "event_params", new ArrayList<>(), keyTypes);
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.spark.sql.catalyst.expressions.GenericRow;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The previous JsonNode tree based implementation of KvConverter.getGenericRows, the reference of KvConverterTest
+ * and KvConverterBenchmark.
+ */
+final class LegacyKvConverter {
+
+    private LegacyKvConverter() {
+    }
+
+    static GenericRow[] getGenericRows(final String value, final List<String> excludeAttributes) throws IOException {
+        JsonNode jsonNode = new ObjectMapper().readTree(value);
+        List<GenericRow> list = new ArrayList<>();
+        for (Iterator<String> it = jsonNode.fieldNames(); it.hasNext();) {
+            String attrName = it.next();
+            if (excludeAttributes.contains(attrName)) {
+                continue;
+            }
+            String attrValue = jsonNode.get(attrName).asText();
+            Double doubleValue = null;
+            Long longValue = null;
+            String stringValue = null;
+            if ("price".equals(attrName)) {
+                doubleValue = Double.parseDouble(attrValue);
+            } else if (attrName.endsWith("_id")) {
+                stringValue = attrValue;
+            } else if (attrValue.matches("^\\d+$")) {
+                longValue = Long.parseLong(attrValue);
+            } else if (attrValue.matches("^\\d+\\.(\\d+)?$")) {
+                doubleValue = Double.parseDouble(attrValue);
+            } else {
+                stringValue = attrValue;
+            }
+            list.add(new GenericRow(new Object[]{attrName, new GenericRow(new Object[]{doubleValue, null, longValue, stringValue})}));
+        }
+        return list.toArray(new GenericRow[]{});
+    }
+}
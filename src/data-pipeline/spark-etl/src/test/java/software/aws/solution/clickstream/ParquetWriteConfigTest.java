@@ -0,0 +1,51 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Properties;
+
+public class ParquetWriteConfigTest {
+    @Test
+    public void should_get_write_options_per_table() {
+        Properties properties = new Properties();
+        properties.setProperty("output.parquet.default.block.size", "268435456");
+        properties.setProperty("output.parquet.event_parameter.codec", "zstd");
+        properties.setProperty("output.parquet.event_parameter.level", "9");
+        properties.setProperty("output.parquet.user.dictionary", "false");
+        properties.setProperty("other.prop", "x");
+        ParquetWriteConfig config = ParquetWriteConfig.fromProperties(properties);
+
+        Map<String, String> eventParameterOptions = config.getWriteOptions("event_parameter");
+        Assertions.assertEquals("zstd", eventParameterOptions.get("compression"));
+        Assertions.assertEquals("9", eventParameterOptions.get("parquet.compression.codec.zstd.level"));
+        Assertions.assertEquals("268435456", eventParameterOptions.get("parquet.block.size"));
+
+        Map<String, String> userFullOptions = config.getWriteOptions("user_full_v1");
+        Assertions.assertEquals("snappy", userFullOptions.get("compression"));
+        Assertions.assertEquals("false", userFullOptions.get("parquet.enable.dictionary"));
+
+        Assertions.assertEquals("snappy", config.getWriteOptions("event").get("compression"));
+    }
+
+    @Test
+    public void should_reject_unknown_setting() {
+        Properties properties = new Properties();
+        properties.setProperty("output.parquet.event.codecs", "zstd");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ParquetWriteConfig.fromProperties(properties));
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SourceManifestTest extends BaseSparkTest {
+
+    @Test
+    public void should_list_only_new_files_after_commit() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.SourceManifestTest.should_list_only_new_files_after_commit
+        long now = System.currentTimeMillis();
+        ZonedDateTime nowDatetime = Instant.ofEpochMilli(now).atZone(ZoneId.of("UTC"));
+        Path sourceDir = Paths.get("/tmp/test-source-manifest/" + now);
+        Path hourDir = sourceDir.resolve(String.format("year=%d/month=%02d/day=%02d/hour=%02d",
+                nowDatetime.getYear(), nowDatetime.getMonthValue(), nowDatetime.getDayOfMonth(), nowDatetime.getHour()));
+        Files.createDirectories(hourDir);
+        Files.write(hourDir.resolve("a.json"), "{}".getBytes(StandardCharsets.UTF_8));
+        Files.write(hourDir.resolve("b.json"), "{}".getBytes(StandardCharsets.UTF_8));
+        Files.write(hourDir.resolve("_SUCCESS"), new byte[0]);
+
+        SourceManifest manifest = new SourceManifest(spark, sourceDir + "-manifest");
+        String source = sourceDir + "/";
+        long startTimestamp = now - 3600 * 1000L;
+        long endTimestamp = now + 60 * 1000L;
+
+        assertFalse(manifest.getCheckpoint().isPresent());
+        List<FileStatus> files = manifest.listNewFiles(source, startTimestamp, endTimestamp);
+        assertEquals(2, files.size());
+
+        manifest.commit(files, "job-1");
+        assertTrue(manifest.getCheckpoint().isPresent());
+        assertEquals(0, manifest.listNewFiles(source, startTimestamp, endTimestamp).size());
+
+        Files.write(hourDir.resolve("c.json"), "{}".getBytes(StandardCharsets.UTF_8));
+        List<FileStatus> newFiles = manifest.listNewFiles(source, startTimestamp, endTimestamp);
+        assertEquals(1, newFiles.size());
+        assertEquals("c.json", newFiles.get(0).getPath().getName());
+    }
+
+    @Test
+    public void should_compact_and_expire_closed_manifest_days() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.SourceManifestTest.should_compact_and_expire_closed_manifest_days
+        long now = System.currentTimeMillis();
+        long oldTime = now - 10 * 24 * 3600 * 1000L;
+        String manifestPath = "/tmp/test-source-manifest/" + now + "-manifest";
+        SourceManifest manifest = new SourceManifest(spark, manifestPath);
+
+        manifest.commit(Collections.singletonList(fileStatus("s3://bucket/a.json", oldTime)), "job-1");
+        manifest.commit(Collections.singletonList(fileStatus("s3://bucket/b.json", oldTime + 1000L)), "job-1");
+        String oldDay = "manifest_day=" + Instant.ofEpochMilli(oldTime).atZone(ZoneId.of("UTC")).toLocalDate();
+        Path oldDayDir = Paths.get(manifestPath, oldDay);
+        assertEquals(2, countDataFiles(oldDayDir));
+
+        // the old day is before the checkpoint window of this commit, it is compacted
+        manifest.commit(Collections.singletonList(fileStatus("s3://bucket/c.json", now)), "job-1");
+        assertEquals(1, countDataFiles(oldDayDir));
+        assertEquals(3, spark.read().parquet(manifestPath).count());
+
+        manifest.cleanClosedDays(now, 5);
+        assertFalse(Files.exists(oldDayDir));
+        assertEquals(1, spark.read().parquet(manifestPath).count());
+    }
+
+    private static FileStatus fileStatus(final String path, final long modificationTime) {
+        return new FileStatus(2, false, 1, 0, modificationTime, new org.apache.hadoop.fs.Path(path));
+    }
+
+    private static long countDataFiles(final Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(".parquet")).count();
+        }
+    }
+}
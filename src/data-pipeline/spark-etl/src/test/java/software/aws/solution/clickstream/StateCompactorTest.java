@@ -0,0 +1,139 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SaveMode;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.lit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class StateCompactorTest extends BaseSparkTest {
+
+    @Test
+    public void should_compact_partitions_with_small_files() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.StateCompactorTest.should_compact_partitions_with_small_files
+        String tablePath = "/tmp/test-state-compactor/" + System.currentTimeMillis() + "/user_incremental_v1";
+        for (int i = 0; i < 12; i++) {
+            appendRows(tablePath, "app1", i * 10L);
+        }
+        appendRows(tablePath, "app2", 0L);
+        appendRows(tablePath, "app2", 10L);
+
+        StateCompactor compactor = new StateCompactor(spark, 10, 128 * 1024 * 1024L);
+        assertEquals(1, compactor.compact(tablePath, new HashMap<>()));
+
+        // the replaced files are kept for the readers which listed them, until a later run
+        assertEquals(13, countDataFiles(tablePath + "/update_date=20230101/app_id=app1"));
+        assertEquals(2, countDataFiles(tablePath + "/update_date=20230101/app_id=app2"));
+        assertEquals(260, spark.read().parquet(tablePath).count());
+
+        assertEquals(1, compactor.recover(tablePath));
+        assertEquals(1, countDataFiles(tablePath + "/update_date=20230101/app_id=app1"));
+        Dataset<Row> compacted = spark.read().parquet(tablePath);
+        assertEquals(140, compacted.count());
+        assertEquals(120, compacted.filter(col("app_id").equalTo("app1")).select("user_pseudo_id").distinct().count());
+
+        // nothing more to compact
+        assertEquals(0, compactor.compact(tablePath, new HashMap<>()));
+    }
+
+    @Test
+    public void should_compact_only_small_files() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.StateCompactorTest.should_compact_only_small_files
+        String tablePath = "/tmp/test-state-compactor/" + System.currentTimeMillis() + "/user_incremental_v1";
+        for (int i = 0; i < 3; i++) {
+            appendRows(tablePath, "app1", i * 10L);
+        }
+        Path partitionDir = new Path(tablePath + "/update_date=20230101/app_id=app1");
+        FileSystem fs = partitionDir.getFileSystem(spark.sparkContext().hadoopConfiguration());
+        List<FileStatus> files = Arrays.stream(fs.listStatus(partitionDir))
+                .filter(f -> f.getPath().getName().endsWith(".parquet"))
+                .collect(Collectors.toList());
+        long fileSize = files.stream().mapToLong(FileStatus::getLen).min().orElse(0L);
+
+        // the files at the target size are not counted, however many they are
+        StateCompactor compactor = new StateCompactor(spark, 2, fileSize);
+        assertFalse(compactor.needsCompaction(new ArrayList<>()));
+        assertEquals(0, compactor.compact(tablePath, new HashMap<>()));
+        assertEquals(3, countDataFiles(partitionDir.toString()));
+
+        compactor = new StateCompactor(spark, 2, fileSize * 10);
+        assertEquals(1, compactor.compact(tablePath, new HashMap<>()));
+    }
+
+    @Test
+    public void should_finish_failed_swap_on_recover() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.StateCompactorTest.should_finish_failed_swap_on_recover
+        String tablePath = "/tmp/test-state-compactor/" + System.currentTimeMillis() + "/user_full_v1";
+        for (int i = 0; i < 3; i++) {
+            appendRows(tablePath, "app1", i * 10L);
+        }
+        Path partitionDir = new Path(tablePath + "/update_date=20230101/app_id=app1");
+        FileSystem fs = partitionDir.getFileSystem(spark.sparkContext().hadoopConfiguration());
+        List<FileStatus> files = Arrays.stream(fs.listStatus(partitionDir))
+                .filter(f -> f.getPath().getName().endsWith(".parquet"))
+                .collect(Collectors.toList());
+        Path compactingDir = new Path(partitionDir, "_compacting_1");
+        spark.read().parquet(partitionDir.toString()).coalesce(1).write().parquet(compactingDir.toString());
+
+        StateCompactor compactor = new StateCompactor(spark, 2, 128 * 1024 * 1024L);
+        compactor.saveManifest(fs, new Path(tablePath), partitionDir, compactingDir, files);
+        // the swap fails after the compacted file is moved in, before the replaced files are deleted
+        FileStatus compactedFile = Arrays.stream(fs.listStatus(compactingDir))
+                .filter(f -> f.getPath().getName().endsWith(".parquet"))
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+        fs.rename(compactedFile.getPath(), new Path(partitionDir, compactedFile.getPath().getName()));
+        assertEquals(4, countDataFiles(partitionDir.toString()));
+
+        assertEquals(1, compactor.recover(tablePath));
+        assertEquals(1, countDataFiles(partitionDir.toString()));
+        assertFalse(fs.exists(compactingDir));
+        assertEquals(30, spark.read().parquet(tablePath).count());
+        assertEquals(0, compactor.recover(tablePath));
+    }
+
+    private void appendRows(final String tablePath, final String appId, final long start) {
+        spark.range(start, start + 10)
+                .withColumn("user_pseudo_id", col("id").cast("string"))
+                .withColumn("app_id", lit(appId))
+                .withColumn("update_date", lit("20230101"))
+                .coalesce(1)
+                .write()
+                .partitionBy("update_date", "app_id")
+                .mode(SaveMode.Append)
+                .parquet(tablePath);
+    }
+
+    private long countDataFiles(final String dir) {
+        return Objects.requireNonNull(new File(dir).listFiles((d, name) -> name.endsWith(".parquet"))).length;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StateKeyIndexTest extends BaseSparkTest {
+
+    @Test
+    public void should_filter_known_keys_by_key_index() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.StateKeyIndexTest.should_filter_known_keys_by_key_index
+        StateKeyIndex keyIndex = new StateKeyIndex(spark, "/tmp/test-state-key-index/" + System.currentTimeMillis() + "/user_full_v1");
+
+        Dataset<Row> keys = createKeyDataset("app1:u1", "app1:u2", "app1:u3", "app2:u1", "app3:u1");
+        List<String> appIds = Arrays.asList("app1", "app2", "app3");
+        // no filter for any app, all keys are kept
+        assertEquals(5, keyIndex.filterKnownKeys(keys, appIds).count());
+
+        keyIndex.rebuild(createKeyDataset("app1:u1", "app1:u2", "app2:u2"));
+        assertEquals(2, keyIndex.listAppIds().size());
+        // only the filters of the given apps are loaded
+        assertEquals(1, keyIndex.load(Arrays.asList("app1", "app3")).size());
+        // app3 has no filter, its keys are all kept
+        assertEquals(Arrays.asList("app1:u1", "app1:u2", "app3:u1"), getKeys(keyIndex.filterKnownKeys(keys, appIds)));
+
+        keyIndex.add(createKeyDataset("app1:u3", "app3:u2"), Arrays.asList("app1", "app3"));
+        assertEquals(Arrays.asList("app1:u1", "app1:u2", "app1:u3", "app3:u1"), getKeys(keyIndex.filterKnownKeys(keys, appIds)));
+        assertFalse(keyIndex.listAppIds().contains("app3"));
+
+        // app2 is not in the state anymore
+        keyIndex.rebuild(createKeyDataset("app1:u1"));
+        assertEquals(1, keyIndex.listAppIds().size());
+        assertTrue(keyIndex.listAppIds().contains("app1"));
+        assertEquals(Arrays.asList("app1:u1", "app2:u1", "app3:u1"), getKeys(keyIndex.filterKnownKeys(keys, appIds)));
+    }
+
+    private Dataset<Row> createKeyDataset(final String... keys) {
+        StructType schema = DataTypes.createStructType(new StructField[]{
+                DataTypes.createStructField("app_id", DataTypes.StringType, false),
+                DataTypes.createStructField("user_pseudo_id", DataTypes.StringType, false),
+        });
+        List<Row> rows = Arrays.stream(keys)
+                .map(k -> RowFactory.create(k.split(":")[0], k.split(":")[1]))
+                .collect(Collectors.toList());
+        return spark.createDataFrame(rows, schema);
+    }
+
+    private List<String> getKeys(final Dataset<Row> keyDataset) {
+        return keyDataset.collectAsList().stream()
+                .map(r -> r.getString(0) + ":" + r.getString(1))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ *  Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ *  with the License. A copy of the License is located at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  or in the 'license' file accompanying this file. This file is distributed on an 'AS IS' BASIS, WITHOUT WARRANTIES
+ *  OR CONDITIONS OF ANY KIND, express or implied. See the License for the specific language governing permissions
+ *  and limitations under the License.
+ */
+
+package software.aws.solution.clickstream;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.util.sketch.BloomFilter;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.apache.spark.sql.functions.col;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StateKeysTest extends BaseSparkTest {
+
+    @Test
+    public void should_compute_key_stats_once_for_subsets() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.StateKeysTest.should_compute_key_stats_once_for_subsets
+        StateKeys keys = new StateKeys(createKeyDataset("app1:u1", "app1:u2", "app2:u1"));
+        assertEquals(Arrays.asList("app1", "app2"), keys.getAppIds().stream().sorted().collect(Collectors.toList()));
+        assertEquals(3, keys.getKeyCount());
+        // the key text and the row of two string columns
+        assertEquals(3 * (7 + 8 + 2 * 8), keys.getKeyBytes());
+        BloomFilter bloomFilter = keys.getBloomFilter();
+        assertTrue(bloomFilter.mightContainString("app1\u0001u2"));
+
+        StateKeys subsetKeys = keys.subset(keys.getKeyDataset().filter(col("app_id").equalTo("app1")));
+        assertEquals(2, subsetKeys.getKeyDataset().count());
+        assertSame(keys.getAppIds(), subsetKeys.getAppIds());
+        assertEquals(keys.getKeyBytes(), subsetKeys.getKeyBytes());
+        assertSame(bloomFilter, subsetKeys.getBloomFilter());
+    }
+
+    private Dataset<Row> createKeyDataset(final String... keys) {
+        StructType schema = DataTypes.createStructType(new StructField[]{
+                DataTypes.createStructField("app_id", DataTypes.StringType, false),
+                DataTypes.createStructField("user_pseudo_id", DataTypes.StringType, false),
+        });
+        List<Row> rows = Arrays.stream(keys)
+                .map(k -> RowFactory.create(k.split(":")[0], k.split(":")[1]))
+                .collect(Collectors.toList());
+        return spark.createDataFrame(rows, schema);
+    }
+}
@@ -152,8 +152,7 @@ class TransformerV2Test extends BaseSparkTest {
 
         Dataset<Row> dataset =
                 spark.read().json(requireNonNull(getClass().getResource("/original_data_with_user_profile_set2.json")).getPath());
-        List<Dataset<Row>> transformedDatasets = transformer.transform(dataset);
-        Dataset<Row> datasetUser = transformedDatasets.get(3);
+        transformer.transform(dataset);
 
         String dataDir = ContextUtil.getWarehouseDir();
 
@@ -161,7 +160,7 @@ class TransformerV2Test extends BaseSparkTest {
         String tableName2 = dataDir + "/" + TransformerV2.TABLE_ETL_USER_DEVICE_ID + FULL_SUFFIX;
         String tableName3 = dataDir + "/" + TransformerV2.TABLE_ETL_USER_PAGE_REFERER + FULL_SUFFIX;
 
-        transformer.postTransform(datasetUser);
+        transformer.postWrite(spark);
         Dataset<Row> d1 = spark.read().parquet(tableName1);
         Dataset<Row> d2 = spark.read().parquet(tableName2);
         Dataset<Row> d3 = spark.read().parquet(tableName3);
@@ -195,9 +194,8 @@ class TransformerV2Test extends BaseSparkTest {
 
         Dataset<Row> dataset =
                 spark.read().json(requireNonNull(getClass().getResource("/original_data_with_user_profile_set2.json")).getPath());
-        List<Dataset<Row>> transformedDatasets = transformer.transform(dataset);
-        Dataset<Row> datasetUser = transformedDatasets.get(3);
-        transformer.postTransform(datasetUser);
+        transformer.transform(dataset);
+        transformer.postWrite(spark);
 
         String dirPath = ContextUtil.getWarehouseDir();
         String pathUser = dirPath + "/user" + INCREMENTAL_SUFFIX;
@@ -222,7 +220,70 @@ class TransformerV2Test extends BaseSparkTest {
         Assertions.assertTrue(dateStr1.toString().matches("\\d{8}"));
 
         System.setProperty("force.merge", "false");
-        transformer.postTransform(datasetUser);
+        transformer.postWrite(spark);
+    }
+
+    @Test
+    public void should_transform_append_merged_full_state_data() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.TransformerV2Test.should_transform_append_merged_full_state_data
+        System.setProperty(APP_IDS_PROP, "uba-app");
+        System.setProperty(PROJECT_ID_PROP, "test_project_id_01");
+
+        Dataset<Row> dataset =
+                spark.read().json(requireNonNull(getClass().getResource("/original_data_with_user_profile_set2.json")).getPath());
+        transformer.transform(dataset);
+        List<Dataset<Row>> transformedDatasets = transformer.transform(dataset);
+        Dataset<Row> datasetUser = transformedDatasets.get(3);
+
+        // the same user in both runs, is merged to one row
+        Assertions.assertEquals(1, datasetUser.filter(expr("user_pseudo_id='uuid1-9844af32'")).count());
+
+        // each run appends the merged version of the users in the batch to the full table
+        String pathUserFull = ContextUtil.getWarehouseDir() + "/user" + FULL_SUFFIX;
+        long userVersions = spark.read().parquet(pathUserFull)
+                .filter(expr("user_pseudo_id='uuid1-9844af32'"))
+                .count();
+        Assertions.assertTrue(userVersions >= 2);
+
+        System.setProperty("force.merge", "true");
+        transformer.postWrite(spark);
+        System.setProperty("force.merge", "false");
+
+        // the daily merge keeps one version per user
+        Dataset<Row> fullUserDataset = spark.read().parquet(pathUserFull);
+        Assertions.assertEquals(fullUserDataset.select("app_id", "user_pseudo_id").distinct().count(), fullUserDataset.count());
+    }
+
+    @Test
+    public void should_transform_user_with_state_prune_mode() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.TransformerV2Test.should_transform_user_with_state_prune_mode
+        System.setProperty(APP_IDS_PROP, "uba-app");
+        System.setProperty(PROJECT_ID_PROP, "test_project_id_01");
+
+        Dataset<Row> dataset =
+                spark.read().json(requireNonNull(getClass().getResource("/original_data_with_user_profile_set2.json")).getPath());
+        String expectedJson = this.resourceFileAsString("/expected/transform_v2_user2.json");
+
+        for (String pruneMode : new String[] {TransformerV2.STATE_PRUNE_MODE_BROADCAST,
+                TransformerV2.STATE_PRUNE_MODE_BLOOM, TransformerV2.STATE_PRUNE_MODE_SHUFFLE}) {
+            System.setProperty(STATE_PRUNE_MODE_PROP, pruneMode);
+            List<Dataset<Row>> transformedDatasets = transformer.transform(dataset);
+            Dataset<Row> datasetUser1 = transformedDatasets.get(3).filter(expr("user_pseudo_id='uuid1-9844af32'"));
+            Assertions.assertEquals(expectedJson, datasetUser1.first().prettyJson(), pruneMode);
+            Assertions.assertEquals(1, datasetUser1.count(), pruneMode);
+        }
+
+        // the keys over the broadcast threshold are joined by shuffle
+        System.setProperty(STATE_PRUNE_MODE_PROP, TransformerV2.STATE_PRUNE_MODE_BROADCAST);
+        spark.conf().set("spark.sql.autoBroadcastJoinThreshold", "-1");
+        try {
+            Dataset<Row> datasetUser1 = transformer.transform(dataset).get(3).filter(expr("user_pseudo_id='uuid1-9844af32'"));
+            Assertions.assertFalse(datasetUser1.queryExecution().executedPlan().toString().contains("BroadcastExchange"));
+            Assertions.assertEquals(expectedJson, datasetUser1.first().prettyJson());
+        } finally {
+            spark.conf().unset("spark.sql.autoBroadcastJoinThreshold");
+            System.clearProperty(STATE_PRUNE_MODE_PROP);
+        }
     }
 
         @Test
@@ -19,11 +19,14 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.List;
 
 import static java.util.Objects.requireNonNull;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static software.aws.solution.clickstream.ContextUtil.APP_IDS_PROP;
 import static software.aws.solution.clickstream.ContextUtil.PROJECT_ID_PROP;
+import static software.aws.solution.clickstream.ContextUtil.UA_ENRICH_MODE_PROP;
 
 class UAEnrichmentTest extends BaseSparkTest {
 
@@ -91,4 +94,50 @@ class UAEnrichmentTest extends BaseSparkTest {
         String expectedJson = this.resourceFileAsString("/expected/ua_enrich_data_v2.json");
         Assertions.assertEquals(expectedJson, transformedDataset.first().prettyJson());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void should_reuse_parsed_ua_from_cache() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.UAEnrichmentTest.should_reuse_parsed_ua_from_cache
+        Dataset<Row> dataset = spark.read().json(requireNonNull(getClass().getResource("/transformed_data.json")).getPath());
+        long hitCountBefore = UAEnrichment.getCacheStats().hitCount();
+
+        List<Row> rows = uaEnrichment.transform(dataset).collectAsList();
+        uaEnrichment.transform(dataset).collectAsList();
+
+        assertEquals(2, rows.size());
+        assertTrue(UAEnrichment.getCacheStats().hitCount() - hitCountBefore >= 3);
+        rows.forEach(row -> {
+            Row device = row.getStruct(row.fieldIndex("device"));
+            assertEquals("Apache-HttpClient", device.getString(device.fieldIndex("ua_browser")));
+            assertEquals("4.4.12", device.getString(device.fieldIndex("ua_browser_version")));
+        });
+    }
+
+    @Test
+    public void should_enrich_ua_by_distinct_join() throws IOException {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.UAEnrichmentTest.should_enrich_ua_by_distinct_join
+        Dataset<Row> dataset = spark.read().json(requireNonNull(getClass().getResource("/transformed_data_v2.json")).getPath());
+        Dataset<Row> udfDataset = uaEnrichment.transform(dataset);
+
+        System.setProperty(UA_ENRICH_MODE_PROP, UAEnrichment.UA_ENRICH_MODE_JOIN);
+        try {
+            Dataset<Row> joinDataset = uaEnrichment.transform(dataset);
+            assertEquals(udfDataset.schema(), joinDataset.schema());
+            String expectedJson = this.resourceFileAsString("/expected/ua_enrich_data_v2.json");
+            Assertions.assertEquals(expectedJson, joinDataset.first().prettyJson());
+            Assertions.assertTrue(joinDataset.queryExecution().executedPlan().toString().contains("BroadcastExchange"));
+            // only the parsed distinct ua are persisted, not the input
+            Assertions.assertTrue(spark.sharedState().cacheManager().lookupCachedData(dataset).isEmpty());
+
+            // the parsed ua over the broadcast threshold is joined by shuffle
+            spark.conf().set("spark.sql.autoBroadcastJoinThreshold", "-1");
+            Dataset<Row> shuffleJoinDataset = uaEnrichment.transform(dataset);
+            Assertions.assertFalse(shuffleJoinDataset.queryExecution().executedPlan().toString().contains("BroadcastExchange"));
+            Assertions.assertEquals(expectedJson, shuffleJoinDataset.first().prettyJson());
+        } finally {
+            spark.conf().unset("spark.sql.autoBroadcastJoinThreshold");
+            System.clearProperty(UA_ENRICH_MODE_PROP);
+            ContextUtil.unpersistDatasets();
+        }
+    }
+}
@@ -15,11 +15,20 @@ package software.aws.solution.clickstream;
 
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.expressions.GenericRow;
+import org.apache.spark.sql.types.DataTypes;
 import org.junit.jupiter.api.Test;
 import scala.collection.Iterator;
 
+import java.util.Arrays;
+
 import static java.util.Objects.requireNonNull;
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.get_json_object;
+import static org.apache.spark.sql.functions.not;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static software.aws.solution.clickstream.ContextUtil.DEBUG_LOCAL_PROP;
 
 public class UserPropertiesConverterTest extends BaseSparkTest {
@@ -101,4 +110,62 @@ public class UserPropertiesConverterTest extends BaseSparkTest {
         converteDataset.printSchema();
         assertEquals(1, converteDataset.count());
     }
+
+    @Test
+    public void should_convert_user_data_same_as_json_path() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.UserPropertiesConverterTest.should_convert_user_data_same_as_json_path
+        System.setProperty(DEBUG_LOCAL_PROP, "false");
+        UserPropertiesConverter transformer = new UserPropertiesConverter();
+        Dataset<Row> dataset = spark.read().json(requireNonNull(getClass().getResource("/data_cleaned.json")).getPath());
+        Dataset<Row> converteDataset = transformer.transform(dataset)
+                .withColumn("expected_user_id", get_json_object(col("data").getField("user"), "$._user_id.value"))
+                .withColumn("expected_user_first_touch_timestamp",
+                        get_json_object(col("data").getField("user"), "$._user_first_touch_timestamp.value").cast(DataTypes.LongType));
+
+        assertEquals(0, converteDataset.filter(not(col("user_id").eqNullSafe(col("expected_user_id")))).count());
+        assertEquals(0, converteDataset.filter(not(col("user_first_touch_timestamp")
+                .eqNullSafe(col("expected_user_first_touch_timestamp")))).count());
+        Row row = converteDataset.first();
+        assertEquals("312121", row.getString(row.fieldIndex("user_id")));
+        assertEquals(1667877267895L, row.getLong(row.fieldIndex("user_first_touch_timestamp")));
+    }
+
+    @Test
+    public void should_not_parse_the_parsed_user_again() {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.UserPropertiesConverterTest.should_not_parse_the_parsed_user_again
+        System.setProperty(DEBUG_LOCAL_PROP, "false");
+        UserPropertiesConverter transformer = new UserPropertiesConverter();
+        Dataset<Row> dataset = spark.read().json(requireNonNull(getClass().getResource("/data_cleaned.json")).getPath());
+        Dataset<Row> parsedDataset = dataset
+                .withColumn(UserPropertiesConverter.PARSED_USER, UserPropertiesConverter.parseUser(col("data").getField("user")))
+                .withColumn("event_user_id", col(UserPropertiesConverter.PARSED_USER).getField("user_id"));
+        Dataset<Row> converteDataset = transformer.transform(parsedDataset);
+
+        String plan = converteDataset.queryExecution().optimizedPlan().toString();
+        assertEquals(plan.indexOf("UDF("), plan.lastIndexOf("UDF("));
+        assertFalse(Arrays.asList(converteDataset.columns()).contains(UserPropertiesConverter.PARSED_USER));
+        assertEquals(0, converteDataset.filter(not(col("user_id").eqNullSafe(col("event_user_id")))).count());
+        assertEquals(transformer.transform(dataset).select("user_properties", "user_ltv", "user_id").collectAsList(),
+                converteDataset.select("user_properties", "user_ltv", "user_id").collectAsList());
+    }
+
+    @Test
+    public void should_convert_user_fields_independently() throws Exception {
+        // DOWNLOAD_FILE=0 ./gradlew clean test --info --tests software.aws.solution.clickstream.UserPropertiesConverterTest.should_convert_user_fields_independently
+        GenericRow row = UserPropertiesConverter.getUserGenericRow(
+                "{\"_user_id\":{\"value\":312121},\"_user_name\":{\"set_timestamp\":1667877566697},"
+                        + "\"_user_ltv_revenue\":{\"value\":1.5},\"_user_first_touch_timestamp\":{\"value\":\"1667877267895\"}}");
+        // _user_name has no value, user_properties fails as before
+        assertNull(row.get(0));
+        assertEquals(1.5, ((Row) row.get(1)).getDouble(0));
+        assertNull(((Row) row.get(1)).get(1));
+        assertEquals("312121", row.getString(2));
+        assertEquals("1667877267895", row.getString(3));
+
+        row = UserPropertiesConverter.getUserGenericRow("{}");
+        assertEquals(0, ((Object[]) row.get(0)).length);
+        assertNull(row.get(1));
+        assertNull(row.get(2));
+        assertNull(row.get(3));
+    }
 }